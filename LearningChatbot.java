@@ -10,8 +10,11 @@
  * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
  */
 
+import java.io.*;
+import java.net.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 public class LearningChatbot {
 	/**
@@ -19,13 +22,18 @@ public class LearningChatbot {
 	 * any descendents, and concludes all statements. This is the only
 	 * "starting knowledge" granted the bot.
 	 */
-	public static final ChatWord ENDWORD = new ChatWord("\n");
+	public static final ChatWord ENDWORD = new ChatWord(ChatDictionary.END_ID, 0.0);
 
 	/**
 	 * The Brain of this operation.
 	 */
 	private ChatbotBrain brain;
 
+	/**
+	 * Whether replies are streamed word by word as the brain settles them.
+	 */
+	private boolean streaming;
+
 	/**
 	 * Starts LearningChatbot with a new brain
 	 */
@@ -33,6 +41,13 @@ public class LearningChatbot {
 		brain = new ChatbotBrain();
 	}
 
+	/**
+	 * Starts LearningChatbot with a given brain.
+	 */
+	public LearningChatbot(ChatbotBrain brain) {
+		this.brain = brain;
+	}
+
 	/**
 	 * Starts LearningChatbot with restored brain.
 	 */
@@ -44,7 +59,7 @@ public class LearningChatbot {
 	 * Invocation method.
 	 */
 	public void beginConversation() {
-		ChatbotBrain cb = new ChatbotBrain();
+		ChatbotBrain cb = brain;
 
 		Scanner dialog = new Scanner(System.in);
 
@@ -61,13 +76,47 @@ public class LearningChatbot {
 				System.exit(0);
 			} else if (input.equals("++help")) {
 				getHelp();
+			} else if (input.equals("++stream")) {
+				streaming = !streaming;
+				System.out.printf("Streaming replies %s.\n", streaming ? "on" : "off");
+			} else if (input.startsWith("++mode")) {
+				try {
+					cb.setSearchMode(ChatbotBrain.SearchMode.valueOf(
+							input.substring(6).trim().toUpperCase()));
+				} catch (IllegalArgumentException iae) {
+					System.out.printf("Search modes are %s.\n",
+							Arrays.toString(ChatbotBrain.SearchMode.values()));
+				}
+				System.out.printf("Searching with %s.\n", cb.getSearchMode());
+			} else if (input.equals("++benchmark")) {
+				cb.benchmark(System.out, 3);
+			} else if (input.equals("++replication")) {
+				if (cb instanceof FollowerBrain) {
+					FollowerBrain follower = (FollowerBrain) cb;
+					System.out.printf("Following at offset %d, %s%s.\n", follower.getOffset(),
+							(follower.getBatches() == 0) ? "nothing learned since the snapshot" :
+									String.format("%d ms behind (%d ms at worst)",
+											follower.getLag(), follower.getMaxLag()),
+							follower.isFollowing() ? "" : ", no longer connected");
+				} else if (cb instanceof LeaderBrain) {
+					LeaderBrain leader = (LeaderBrain) cb;
+					System.out.printf("Leading at offset %d, with %d followers.\n",
+							leader.getLogOffset(), leader.getFollowers());
+				} else {
+					System.out.println("Not replicating.");
+				}
 			}else {
 				cb.decay();
 				cb.digestSentence(input);
 			}
 
 			System.out.print("Chatbot? ");
-			System.out.println(cb.buildSentence());
+			if (streaming) {
+				cb.streamSentence(System.out);
+				System.out.println();
+			} else {
+				System.out.println(cb.buildSentence());
+			}
 		}
 	}
 
@@ -81,11 +130,42 @@ public class LearningChatbot {
 		System.out.println("Or type");
 		System.out.println("   ++save");
 		System.out.println("to exit and save the brain.");
+		System.out.println("Type");
+		System.out.println("   ++stream");
+		System.out.println("to toggle showing replies as they are thought of");
+		System.out.println("(only depth_first shows them early, the others show them whole).");
+		System.out.println("Type");
+		System.out.println("   ++mode depth_first");
+		System.out.println("or ++mode bidirectional");
+		System.out.println("or ++mode monte_carlo");
+		System.out.println("to choose how replies are thought of, and");
+		System.out.println("   ++benchmark");
+		System.out.println("to compare how well the searches do over time.");
+		System.out.println("Type");
+		System.out.println("   ++replication");
+		System.out.println("to see how far behind the leader a follower is.");
 		System.out.println();
 	}
 
 	/**
-	 * Get things started.
+	 * Helper to read an address given as host:port, or just a port on
+	 * this machine.
+	 */
+	private static InetSocketAddress address(String hostPort) {
+		int colon = hostPort.lastIndexOf(':');
+		if (colon < 0) {
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					Integer.parseInt(hostPort));
+		}
+		return new InetSocketAddress(hostPort.substring(0, colon),
+				Integer.parseInt(hostPort.substring(colon + 1)));
+	}
+
+	/**
+	 * Get things started. Besides a brain file, takes
+	 *    --leader [host:]port        to let followers copy the brain,
+	 *    --follower [host:]port      to follow a leader, read-only.
+	 * The self checks are in LearningChatbotChecks.
 	 */
 	public static void main(String[] args) {
 		System.out.println("Welcome to the Learning Chatbot");
@@ -93,7 +173,27 @@ public class LearningChatbot {
 		getHelp();
 
 		LearningChatbot lc = null;
-		if (args.length > 0) {
+		if (args.length > 1 && args[0].equals("--leader")) {
+			LeaderBrain leader = new LeaderBrain();
+			try {
+				leader.serve(address(args[1]));
+			} catch (IOException ioe) {
+				System.out.printf("Can't serve followers on %s: %s\n", args[1], ioe.getMessage());
+				System.exit(1);
+			}
+			System.out.printf("Serving followers on %s.\n", args[1]);
+			lc = new LearningChatbot(leader);
+		} else if (args.length > 1 && args[0].equals("--follower")) {
+			FollowerBrain follower = new FollowerBrain();
+			try {
+				follower.follow(address(args[1]));
+			} catch (IOException ioe) {
+				System.out.printf("Can't follow %s: %s\n", args[1], ioe.getMessage());
+				System.exit(1);
+			}
+			System.out.printf("Following %s; nothing said here is learned.\n", args[1]);
+			lc = new LearningChatbot(follower);
+		} else if (args.length > 0) {
 			System.out.printf("Using %s as brain file, if possible.", args[0]);
 			lc = new LearningChatbot(args[0]);
 		} else {
@@ -108,10 +208,20 @@ public class LearningChatbot {
 	 */
 	static class ChatbotBrain {
 		/**
-		 * A tracking of all observed words. Keyed by the String version of
-		 * the ChatWord, to allow uniqueness across all ChatWords
+		 * A tracking of all observed words. The dictionary maps the text of
+		 * each word to a dense id, to allow uniqueness across all ChatWords
+		 */
+		private ChatDictionary dictionary;
+
+		/**
+		 * All observed ChatWords, indexed by their dictionary id.
+		 */
+		private List<ChatWord> observedWords;
+
+		/**
+		 * The punctuation alphabet shared by all words of this brain.
 		 */
-		private Map<String,ChatWord> observedWords;
+		private PunctuationTable punctuationSymbols;
 
 		/**
 		 * This brain is going to be able to keep track of "topics" by way of
@@ -146,7 +256,7 @@ public class LearningChatbot {
 		 */
 		private double decayRate;
 
-		// These values configure various features of the recursive 
+		// These values configure various features of the depth first
 		// sentence construction algorithm.
 		/** Nominal (target) length of sentences */
 		public static final int NOMINAL_LENGTH = 10;
@@ -175,9 +285,89 @@ public class LearningChatbot {
 		/** % chance that we'll examine all words in frequency list again
 		 * if we fail to branch enough times the first time through our list*/
 		public static final int BREADTH_ASSURANCE_CHANCE = 50;
+		/** Topic words that must carry over for a search to resume */
+		public static final int RESUME_TOPICS = 4;
+		/** Entries in the transposition table of the depth first search */
+		public static final int TRANSPOSITION_ENTRIES = 1 << 11;
+		/** Paths kept per side when bridging topics to the sentence edges */
+		public static final int BRIDGE_CANDIDATES = 6;
+		/** Most nodes the Monte Carlo search tree may grow to */
+		public static final int MCTS_NODES = 1 << 16;
+		/** Exploration weight of the Monte Carlo search (UCT constant) */
+		public static final double MCTS_EXPLORATION = 1.4;
+		/** Threads running Monte Carlo simulations at once */
+		public static final int MCTS_THREADS = Runtime.getRuntime().availableProcessors();
+		/** Play-outs per child a Monte Carlo node that can't grow is given */
+		public static final int MCTS_FULL_PLAYOUTS = 4;
+		/** Tries to pick a non-looping word before a rollout gives up */
+		public static final int MCTS_ROLLOUT_TRIES = 3;
+		/** Elapsed times (ms) the search benchmark reports on */
+		public static final long[] BENCHMARK_CHECKPOINTS = {
+				10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+		/** Search time (ms) kept back from TIMEOUT for a fallback search */
+		public static final long FALLBACK_SLICE = 50;
+		/** Most search time before the first words of a streamed sentence are shown */
+		public static final long STREAM_FIRST_SLICE = 50;
+		/** Search time (ms) of each look at a streamed sentence's next words */
+		public static final long STREAM_SLICE = 10;
+		/** Looks in a row that must agree before streamed words are settled */
+		public static final int STREAM_SETTLE = 3;
+
+		/** Sentences kept in the conversation window for topics */
+		public static final int WINDOW_SENTENCES = 3;
+		/** Words of each sentence kept in the conversation window */
+		public static final int WINDOW_WORDS = 64;
+
+		/** The last few sentences observed by the bot, ranked by word value */
+		private ConversationWindow window;
+
+		/** The topic words of the current turn, reused from turn to turn */
+		private TopicSet topics;
+
+		/**
+		 * The ways this brain knows to build a sentence.
+		 */
+		public static enum SearchMode {
+			/** Forward depth first search from the start word. */
+			DEPTH_FIRST,
+			/** Walk out from topic words to both ends of the sentence. */
+			BIDIRECTIONAL,
+			/** Monte Carlo tree search, sampling sentences in parallel. */
+			MONTE_CARLO
+		}
 
-		/** The last sentence observed by the bot, as a value map */
-		private NavigableMap<Double,Collection<ChatWord>> lastSentence;
+		/** How sentences are built by buildSentence. */
+		private SearchMode searchMode;
+
+		/** Nodes expanded while building the last sentence. */
+		private long expandedNodes;
+
+		/**
+		 * Most nodes the depth first search may expand for a sentence, or
+		 * 0 to be limited by TIMEOUT alone.
+		 */
+		private long nodeBudget;
+
+		/** Value of the last sentence built by buildSentence. */
+		private double sentenceValue;
+
+		/** Suffixes already searched by the depth first search. */
+		private TranspositionTable transpositions;
+
+		/** The depth first search, kept from turn to turn. */
+		private DepthFirstSearch search;
+
+		/** The Monte Carlo search. */
+		private MonteCarloSearch monteCarlo;
+
+		/** Threads for the Monte Carlo search, started when first needed. */
+		private ExecutorService workers;
+
+		/**
+		 * Nanoseconds from the start of the last streamed sentence until
+		 * its first word was shown, or -1 if it showed no words.
+		 */
+		private long firstWordLatency;
 
 		/**
 		 * Convenience parameter to use a common random source 
@@ -189,106 +379,184 @@ public class LearningChatbot {
 		 * Gets the Chatbot started, sets up data structures necessary
 		 */
 		public ChatbotBrain() {
-			observedWords = new HashMap<String,ChatWord>();
-			observedWords.put("\n",ENDWORD);
-			startWord = new ChatWord("");
-			observedWords.put("",startWord);
+			dictionary = new ChatDictionary();
+			observedWords = new ArrayList<ChatWord>();
+			observedWords.add(ENDWORD);
+			startWord = new ChatWord(ChatDictionary.START_ID, 0.0);
+			observedWords.add(startWord);
+			punctuationSymbols = new PunctuationTable();
+			wordCount = 0;
+			startConversation();
+		}
+
+		/**
+		 * Starts a brain that shares the vocabulary, edges and punctuation
+		 * of another, but keeps its own topics and conversation window.
+		 * Used by BrainOverlay, which keeps its own learning too.
+		 */
+		protected ChatbotBrain(ChatbotBrain base) {
+			dictionary = base.dictionary;
+			observedWords = base.observedWords;
+			startWord = base.startWord;
+			punctuationSymbols = base.punctuationSymbols;
+			wordCount = base.wordCount;
+			startConversation();
+			decayRate = base.decayRate;
+		}
 
+		/**
+		 * Helper to set up the conversation state: topic weights, the
+		 * conversation window and the like. The search state is made
+		 * when first needed.
+		 */
+		private void startConversation() {
 			wordFrequencyLookup = new HashMap<ChatWord, Double>();
 			wordFrequency = new TreeMap<Double, Collection<ChatWord>>();
 			decayRate = 0.10;
-			wordCount = 0;
 			wordValues = 0.0;
 			random = new Random();
+			firstWordLatency = -1;
+			searchMode = SearchMode.DEPTH_FIRST;
+			nodeBudget = 0;
 
-			lastSentence = new TreeMap<Double, Collection<ChatWord>>();
+			window = new ConversationWindow(WINDOW_SENTENCES, WINDOW_WORDS);
+			topics = new TopicSet(TOPICS);
 		}
 
 		/**
-		 * More complex digest method (second edition) that takes a sentence,
+		 * More complex digest method (third edition) that takes a sentence,
 		 * cuts it up, and links up the words based on ordering.
 		 * It is sensitive to punctuation, and also simple typos (like
 		 * forgetting to put spaces after punctuation, etc.).
 		 * Note the character class is somewhat complex to deal with
 		 * stupid English things like hyphenation, possessives, and
 		 * abbreviations.
+		 * Words are looked up in the dictionary straight from the sentence,
+		 * so no Strings are created for words that are already known.
 		 */
 		public void digestSentence(String sentence) {
-			Scanner scan = new Scanner(sentence);
-
 			ChatWord prior = null;
 			ChatWord current = null;
-			String currentStr = null;
-			String currentPnc = null;
-			clearLastSentence();
-			while (scan.hasNext()) {
-				currentStr = scan.next();
-				Pattern wordAndPunctuation = 
-						Pattern.compile("([a-zA-Z\\-_'0-9]+)([^a-zA-Z\\-_'0-9]?)[^a-zA-Z\\-_'0-9]*?");
-				Matcher findWords = wordAndPunctuation.matcher(currentStr);
-				//  Basically this lets us find words-in-word typos like this:
-				//  So,bob left his clothes with me again.
-				//  where "So,bob" becomes "So," "bob"
-				while (findWords.find()) {
-					currentStr = findWords.group(1);
-					currentPnc = findWords.group(2);
-					if (currentStr != null) {
-						if (observedWords.containsKey(currentStr)) {
-							current = observedWords.get(currentStr);
-						} else {
-							current = new ChatWord(currentStr);
-							observedWords.put(currentStr, current);
-						}
-
-						addToLastSentence(current);
+			beginSentence();
+			int length = sentence.length();
+			int pos = 0;
+			while (pos < length) {
+				if (!isWordCharacter(sentence.charAt(pos))) {
+					pos++;
+					continue;
+				}
+				int start = pos;
+				while (pos < length && isWordCharacter(sentence.charAt(pos))) {
+					pos++;
+				}
+				current = observeWord(sentence, start, pos);
 
-						incrementWord(current);
-						
-						if (currentPnc != null && !currentPnc.equals("")) {
-							current.addPunctuation(currentPnc.charAt(0));
-						}
+				sight(current);
 
-						if (prior != null) {
-							prior.addDescendent(current);
-						}
-						if (prior == null) {
-							startWord.addDescendent(current);
-						}
+				//  A single non-word character stuck to the end of a word is
+				//  its punctuation. Anything after that is skipped, which
+				//  lets us find words-in-word typos like this:
+				//  So,bob left his clothes with me again.
+				//  where "So,bob" becomes "So," "bob"
+				if (pos < length && !Character.isWhitespace(sentence.charAt(pos))) {
+					learnPunctuation(current, sentence.charAt(pos), 1);
+					pos++;
+				}
 
-						prior = current;
-					}
+				if (prior != null) {
+					learnEdge(prior, current, 1);
 				}
+				if (prior == null) {
+					learnEdge(startWord, current, 1);
+				}
+
+				prior = current;
 			}
 			if (prior != null) { // finalize.
-				prior.addDescendent(ENDWORD);
+				learnEdge(prior, ENDWORD, 1);
 			}
 		}
 
-		/** Helper to clear lastSentence. */
-		private void clearLastSentence() {
-			for (Double key : lastSentence.keySet()) {
-				lastSentence.get(key).clear();
+		/**
+		 * Starts a new sentence in the conversation window.
+		 */
+		protected void beginSentence() {
+			window.beginSentence();
+		}
+
+		/**
+		 * Records a sighting of a word in the conversation.
+		 */
+		protected void sight(ChatWord word) {
+			window.addWord(word.getId(), word.getValue());
+			incrementWord(word);
+		}
+
+		/**
+		 * Records that one word was seen following another a number of
+		 * times.
+		 */
+		protected void learnEdge(ChatWord word, ChatWord next, int times) {
+			word.addDescendent(next, times);
+		}
+
+		/**
+		 * Records punctuation seen following a word a number of times.
+		 * Characters beyond what the punctuation table can hold are
+		 * ignored.
+		 */
+		protected void learnPunctuation(ChatWord word, char c, int times) {
+			int symbol = punctuationSymbols.intern(c);
+			if (symbol >= 0) {
+				word.addPunctuation(symbol, times);
 			}
-			lastSentence.clear();
 		}
 
-		/** Helper to add a word to the last sentence collection */
-		private void addToLastSentence(ChatWord cw) {
-			Double value = valueWord(cw);
-			Collection<ChatWord> words;
-			if (lastSentence.containsKey(value)) {
-				words = lastSentence.get(value);
-			} else {
-				words = new HashSet<ChatWord>();
-				lastSentence.put(value, words);
+		/** Helper to identify characters that can be part of a word. */
+		private static boolean isWordCharacter(char c) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+					(c >= '0' && c <= '9') || c == '-' || c == '_' || c == '\'';
+		}
+
+		/**
+		 * Helper to find the ChatWord for a window of text, creating it if
+		 * this is the first time it has been seen.
+		 */
+		protected ChatWord observeWord(CharSequence text, int start, int end) {
+			int id = dictionary.lookup(text, start, end);
+			if (id < 0) {
+				id = dictionary.intern(text, start, end);
+				observedWords.add(new ChatWord(id, valueWord(end - start)));
 			}
-			words.add(cw);
+			return observedWords.get(id);
+		}
+
+		/**
+		 * Gets how many words the brain knows, counting the ENDWORD and
+		 * start word. Ids of known words are all below this.
+		 */
+		public int getVocabularySize() {
+			return observedWords.size();
+		}
+
+		/**
+		 * Gets the ChatWord with an id.
+		 */
+		protected ChatWord word(int id) {
+			return observedWords.get(id);
+		}
+
+		/**
+		 * Appends the text of the word with an id.
+		 */
+		protected void appendText(int id, StringBuilder sb) {
+			dictionary.appendText(id, sb);
 		}
 
 		/** Helper to value a word using a logarithmic valuation */
-		private Double valueWord(ChatWord word) {
-			if (word.getWord().length() > 0) {
-				return (Math.log(word.getWord().length()) /	Math.log(4));
+		protected static double valueWord(int length) {
+			if (length > 0) {
+				return (Math.log(length) /	Math.log(4));
 			} else {
 				return 0.0; // empty words have no value.
 			}
@@ -307,12 +575,13 @@ public class LearningChatbot {
 			Collection<ChatWord> freqMap;
 			if (wordFrequencyLookup.containsKey(word)) {
 				curValue = wordFrequencyLookup.get(word);
-				freqMap = wordFrequency.get(curValue);
-				freqMap.remove(word);
+				removeFrequency(curValue, word);
 			} else {
-				curValue = 0.0;
+				// a word weighed elsewhere carries on from that weight
+				curValue = inheritedWeight(word);
+				wordValues += curValue;
 			}
-			nextValue=curValue+valueWord(word);
+			nextValue=curValue+word.getValue();
 			wordFrequencyLookup.put(word, nextValue);
 
 			freqMap = wordFrequency.get(nextValue);
@@ -326,6 +595,60 @@ public class LearningChatbot {
 			wordValues++;
 		}
 		
+		/**
+		 * Helper to take a word out of the frequency list. Weights are
+		 * hardly ever shared, so the emptied set is dropped rather than
+		 * left in the map for good.
+		 */
+		private void removeFrequency(Double weight, ChatWord word) {
+			Collection<ChatWord> freqMap = wordFrequency.get(weight);
+			freqMap.remove(word);
+			if (freqMap.isEmpty()) {
+				wordFrequency.remove(weight);
+			}
+		}
+
+		/**
+		 * Sets the topic weight of a word outright, as when copying it
+		 * from another brain.
+		 */
+		protected void restoreWeight(ChatWord word, double weight) {
+			Double curValue = wordFrequencyLookup.get(word);
+			if (curValue != null) {
+				removeFrequency(curValue, word);
+			}
+			wordFrequencyLookup.put(word, weight);
+			Collection<ChatWord> freqMap = wordFrequency.get(weight);
+			if (freqMap == null) {
+				freqMap = new HashSet<ChatWord>();
+				wordFrequency.put(weight, freqMap);
+			}
+			freqMap.add(word);
+		}
+
+		/**
+		 * Sets the count of words seen and the sum of their weights
+		 * outright, as when copying them from another brain.
+		 */
+		protected void restoreCounts(int wordCount, double wordValues) {
+			this.wordCount = wordCount;
+			this.wordValues = wordValues;
+		}
+
+		/**
+		 * Gets the count of words seen.
+		 */
+		protected int getWordCount() {
+			return wordCount;
+		}
+
+		/**
+		 * Gets the sum of the topic weights of the words seen.
+		 */
+		protected double getWordValues() {
+			return wordValues;
+		}
+
 		/**
 		 * Decays a particular word by decay rate.
 		 */
@@ -335,8 +658,7 @@ public class LearningChatbot {
 			Collection<ChatWord> freqMap;
 			if (wordFrequencyLookup.containsKey(word)) {
 				curValue = wordFrequencyLookup.get(word);
-				freqMap = wordFrequency.get(curValue);
-				freqMap.remove(word);
+				removeFrequency(curValue, word);
 			} else {
 				return;
 			}
@@ -362,42 +684,111 @@ public class LearningChatbot {
 			for (ChatWord cw : wordFrequencyLookup.keySet()) {
 				decayWord(cw);
 			}
+			decayInherited();
+		}
+
+		/**
+		 * Decays topic weights kept somewhere other than this brain. A
+		 * plain brain keeps all of its own.
+		 */
+		protected void decayInherited() {
+		}
+
+		/**
+		 * Gets the topic weight of a word, or 0 if it hasn't been seen.
+		 */
+		protected double weight(ChatWord word) {
+			Double weight = wordFrequencyLookup.get(word);
+			return (weight != null) ? weight : inheritedWeight(word);
+		}
+
+		/**
+		 * Gets the topic weight this brain has given a word itself, or
+		 * null if it has none of its own.
+		 */
+		protected Double ownWeight(ChatWord word) {
+			return wordFrequencyLookup.get(word);
+		}
+
+		/**
+		 * Gets the topic weight of a word this brain hasn't weighed
+		 * itself. A plain brain has nowhere else to look.
+		 */
+		protected double inheritedWeight(ChatWord word) {
+			return 0.0;
+		}
+
+		/**
+		 * Gets the highest topic weight, or 0 if nothing has been seen.
+		 */
+		protected double topWeight() {
+			return wordFrequency.isEmpty() ? 0.0 : wordFrequency.lastKey();
+		}
+
+		/**
+		 * Lists the words with a topic weight, heaviest first.
+		 */
+		protected Iterator<ChatWord> wordsByWeight() {
+			final Iterator<Collection<ChatWord>> groups =
+					wordFrequency.descendingMap().values().iterator();
+			return new Iterator<ChatWord>() {
+				private Iterator<ChatWord> group = Collections.<ChatWord>emptyIterator();
+
+				@Override
+				public boolean hasNext() {
+					while (!group.hasNext() && groups.hasNext()) {
+						group = groups.next().iterator();
+					}
+					return group.hasNext();
+				}
+
+				@Override
+				public ChatWord next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					return group.next();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
 		}
 
 		/**
 		 * Gets a set of words that appear to be "top" of the frequency
-		 * list.
+		 * list, topped up with the most valuable words of the
+		 * conversation window. The set is owned by the brain and is
+		 * refilled by the next call.
 		 */
-		public Set<ChatWord> topicWords(int maxTopics) {
-			Set<ChatWord> topics = new HashSet<ChatWord>();
+		public TopicSet topicWords(int maxTopics) {
+			topics.clear();
 			int maxGlobalTopics = (int) (maxTopics * (double)TOPIC_SPLIT);
 			int maxSentenceTopics = maxTopics;
 
 			int nTopics = 0;
 			int topicSkip = (int)(((float)wordCount * (float)TOPIC_SKIP)/100f);
 			//System.out.println("Topics:");
-			for (Double weight: wordFrequency.descendingKeySet()) {
-				for (ChatWord word: wordFrequency.get(weight)) {
-					if (topicSkip <= 0) { 
-						topics.add(word);
-						//System.out.printf("\t%2f %s (global)", weight, word.getWord());
-						nTopics++;
-						if (nTopics == maxGlobalTopics) break;
-					} else {
-						topicSkip--;
-					}
-				}
-				if (nTopics == maxGlobalTopics) break;
-			}
-			//System.out.println();
-			for (Double weight: lastSentence.descendingKeySet()) {
-				for (ChatWord word: lastSentence.get(weight)) {
+			Iterator<ChatWord> byWeight = wordsByWeight();
+			while (nTopics < maxGlobalTopics && byWeight.hasNext()) {
+				ChatWord word = byWeight.next();
+				if (topicSkip <= 0) { 
 					topics.add(word);
-						//System.out.printf("\t%2f %s (last)", wordFrequencyLookup.get(word), word.getWord());
+					//System.out.printf("\t%2f %s (global)", weight(word), dictionary.getText(word.getId()));
 					nTopics++;
-					if (nTopics == maxSentenceTopics) break;
+				} else {
+					topicSkip--;
 				}
+			}
+			//System.out.println();
+			for (int rank = 0; rank < window.size(); rank++) {
 				if (nTopics == maxSentenceTopics) break;
+				ChatWord word = word(window.getWord(rank));
+				topics.add(word);
+					//System.out.printf("\t%2f %s (window)", window.getScore(rank), dictionary.getText(word.getId()));
+				nTopics++;
 			}
 			//System.out.printf("\nFinal count: %d\n", topics.size());
 			return topics;
@@ -426,154 +817,2373 @@ public class LearningChatbot {
 			ChatSentence cs = new ChatSentence(startWord);
 			// We don't want to take too long to "think of an answer"
 			long timeout = System.currentTimeMillis() + TIMEOUT;
-			double bestValue = buildSentence(cs, topicWords(TOPICS), 0.0, 0, maxDepth, timeout);
-			return cs.toString();
+			expandedNodes = 0;
+			TopicSet topics = topicWords(TOPICS);
+			if (searchMode == SearchMode.BIDIRECTIONAL) {
+				sentenceValue = buildBidirectional(cs, topics, maxDepth,
+						timeout - FALLBACK_SLICE);
+				if (sentenceValue == Double.NEGATIVE_INFINITY) {
+					// no topic could be bridged both ways this time
+					sentenceValue = fallback(cs, topics, maxDepth, timeout);
+				}
+			} else if (searchMode == SearchMode.MONTE_CARLO) {
+				if (monteCarlo == null) {
+					monteCarlo = new MonteCarloSearch();
+				}
+				monteCarlo.start(topics, maxDepth);
+				monteCarlo.run(timeout);
+				sentenceValue = monteCarlo.result(cs);
+			} else {
+				if (search == null) {
+					search = new DepthFirstSearch();
+				}
+				boolean resumed = search.resume(topics);
+				if (!resumed) {
+					search.start(new ChatSentence(startWord), topics, 0, 0, maxDepth);
+				}
+				search.run(resumed ? timeout - FALLBACK_SLICE : timeout);
+				sentenceValue = search.result(cs);
+				if (resumed && cs.render(this).isEmpty()) {
+					// what was left of the old search held no new sentence
+					cs = new ChatSentence(startWord);
+					sentenceValue = fallback(cs, topics, maxDepth, timeout);
+				}
+			}
+			return cs.render(this);
 		}
 
 		/**
-		 * Recursive portion of the buildSentence algorithm.
+		 * Helper for when a search came up empty. Runs a fresh depth first
+		 * search until the timeout, with a fresh node budget so that it has
+		 * a chance to answer. Searches that may need one stop
+		 * FALLBACK_SLICE before the timeout, so there is always that much
+		 * time left. Returns the value of the sentence found.
 		 */
-		public double buildSentence(ChatSentence sentence, 
-				Set<ChatWord> topics, double curValue,
-				int curDepth, int maxDepth, long timeout){
-			if (curDepth==maxDepth || System.currentTimeMillis() > timeout) {
-				return curValue;
+		private double fallback(ChatSentence cs, TopicSet topics, int maxDepth, long timeout) {
+			if (search == null) {
+				search = new DepthFirstSearch();
 			}
-			// Determine how many branches to enter from this node
-			int maxBranches = MIN_BRANCHES + random.nextInt(MAX_BRANCHES - MIN_BRANCHES);
-			// try a few "best" words from ChatWord's descendent list.
-			ChatWord word = sentence.getLastWord();
-			NavigableMap<Integer, Collection<ChatWord>> roots =
-					word.getDescendents();
-			// Going to keep track of current best encountered sentence
-			double bestSentenceValue = curValue;
-			ChatSentence bestSentence = null;
-			int curBranches = 0;
-			// This is to combat prematurely ended sentences.
-			while (curBranches < MIN_BRANCHES) {
-				for (Integer freq : roots.descendingKeySet()) {
-					for (ChatWord curWord : roots.get(freq)) {
-						int chance = random.nextInt(100);
-						if (curWord.equals(ENDWORD)) {
-							if (chance>=SKIP_CHANCE) {
-								double endValue = random.nextDouble() * wordFrequency.lastKey();
-								/* The endword's value is a random portion of
-								 * the highest frequency word's value, so it's
-								 * comparable, also gives a slight preference
-								 * to ending sentences.*/
-								if (curValue+endValue > bestSentenceValue) {
-									bestSentenceValue = curValue+endValue;
-									bestSentence = new ChatSentence(sentence);
-									// Try to add punctuation if possible.
-									addPunctuation(bestSentence);
-									bestSentence.addWord(curWord); // then end.
-								}
-								curBranches++;
-							}
-						} else {
-							boolean loop = sentence.hasWord(curWord);
-							/* Include a little bit of chance in the inclusion
-							 * of any given word, whether a loop or not.*/
-							if ( (!loop&&chance>=SKIP_CHANCE) ||
-									(loop&&chance<LOOP_CHANCE)) {
-								double wordValue = topics.contains(curWord)?
-										wordFrequencyLookup.get(curWord):0.0;
-								ChatSentence branchSentence = new ChatSentence(sentence);
-								branchSentence.addWord(curWord);
-								addPunctuation(branchSentence);
-								double branchValue = buildSentence(branchSentence,
-										topics, curValue+wordValue, curDepth+1,
-										maxDepth, timeout);
-								if (branchValue > bestSentenceValue) {
-									bestSentenceValue = branchValue;
-									bestSentence = branchSentence;
-								}
-								curBranches++;
-							}
+			long spent = expandedNodes;
+			expandedNodes = 0;
+			search.start(new ChatSentence(startWord), topics, 0, 0, maxDepth);
+			search.run(timeout);
+			expandedNodes += spent;
+			return search.result(cs);
+		}
+
+		/**
+		 * Anytime version of buildSentence, that shows the sentence as it
+		 * is thought of. The next words are looked for in short searches
+		 * of STREAM_SLICE from the words settled so far, each with its own
+		 * random pruning. Once the last STREAM_SETTLE looks agree on the
+		 * next words, those are settled, written to out, and become the
+		 * fixed prefix for the looks after them. A look that searches
+		 * everything, or runs into the timeout or node budget, settles
+		 * the rest of the best sentence found at once. Looks that keep
+		 * disagreeing only get until a deadline: STREAM_FIRST_SLICE for
+		 * the first word, then the remaining time spread evenly over the
+		 * words still to come. At the deadline the next word of the best
+		 * look so far is settled. Only the depth first search can be
+		 * restarted like this; with any other search mode the sentence is
+		 * built as usual and written whole. Returns the whole sentence.
+		 */
+		public String streamSentence(PrintStream out) {
+			long started = System.nanoTime();
+			if (searchMode != SearchMode.DEPTH_FIRST) {
+				String sentence = buildSentence();
+				out.print(sentence);
+				out.flush();
+				firstWordLatency = sentence.isEmpty() ? -1 : System.nanoTime() - started;
+				return sentence;
+			}
+			int maxDepth = NOMINAL_LENGTH+
+					random.nextInt(MAX_LENGTH - NOMINAL_LENGTH);
+			long timeout = System.currentTimeMillis() + TIMEOUT;
+			expandedNodes = 0;
+			TopicSet topics = topicWords(TOPICS);
+			if (search == null) {
+				search = new DepthFirstSearch();
+			}
+			ChatSentence committed = new ChatSentence(startWord);
+			int depth = 0;
+			int collected = 0;
+			double value = 0.0;
+			long deadline = System.currentTimeMillis() + STREAM_FIRST_SLICE;
+			LinkedList<ChatSentence> looks = new LinkedList<ChatSentence>();
+			ChatSentence best = null;
+			double bestValue = 0.0;
+			boolean shown = false;
+			firstWordLatency = -1;
+			sentenceValue = 0.0;
+			while (!committed.hasWord(ENDWORD)) {
+				ChatSentence look = new ChatSentence(committed);
+				search.start(committed, topics, collected, depth, maxDepth);
+				boolean finished = search.run(Math.min(
+						System.currentTimeMillis() + STREAM_SLICE, timeout));
+				double found = search.result(look);
+				if (best == null || found > bestValue) {
+					best = look;
+					bestValue = found;
+				}
+				looks.addLast(look);
+				if (looks.size() > STREAM_SETTLE) {
+					looks.removeFirst();
+				}
+				long now = System.currentTimeMillis();
+				int from = committed.getWords().size();
+				ChatSentence source = look;
+				double sourceValue = found;
+				int to = from;
+				if (finished || now >= timeout ||
+						(nodeBudget > 0 && expandedNodes >= nodeBudget)) {
+					source = best;
+					sourceValue = bestValue;
+					to = source.getWords().size();
+				} else if (looks.size() == STREAM_SETTLE) {
+					to = agreed(looks, from);
+				}
+				if (to == from && now >= deadline) {
+					source = best;
+					sourceValue = bestValue;
+					to = nextWordEnd(source.getWords(), from);
+				}
+				if (to == from) {
+					if (now >= timeout) break;
+					continue;
+				}
+				// Settle the words, along with any punctuation after them
+				List<Object> tokens = source.getWords();
+				double before = value;
+				for (int i = from; i < to; i++) {
+					Object o = tokens.get(i);
+					if (o instanceof ChatWord) {
+						ChatWord word = (ChatWord) o;
+						committed.addWord(word);
+						if (!word.equals(ENDWORD)) {
+							depth++;
+							value += topicValue(word, topics);
 						}
-						if (curBranches == maxBranches) break;
+						collected = collect(collected, topics, word);
+					} else {
+						committed.addCharacter((Character) o);
 					}
-					if (curBranches == maxBranches) break;
 				}
-				if (random.nextInt()>=BREADTH_ASSURANCE_CHANCE)	break;
-			}
-			if (bestSentence != null) {
-				sentence.replaceSentence(bestSentence);
+				if (committed.hasWord(ENDWORD)) {
+					value = before + sourceValue; // includes the ending's value
+				}
+				shown = showTokens(out, tokens, from, to, shown);
+				if (firstWordLatency < 0 && shown) {
+					firstWordLatency = System.nanoTime() - started;
+				}
+				looks.clear();
+				best = null;
+				now = System.currentTimeMillis();
+				deadline = now + (timeout - now) / Math.max(1, maxDepth - depth);
 			}
-			return bestSentenceValue;
+			sentenceValue = value;
+			search.discard(); // looks at a streamed sentence can't be resumed
+			return committed.render(this);
 		}
 
 		/**
-		 * Adds punctuation to a sentence, potentially.
+		 * Helper to find how far the looks at a streamed sentence agree
+		 * past the first from tokens, up to the end of a word and its
+		 * punctuation in all of them. Returns from if they don't agree on
+		 * the next word.
 		 */
-		public void addPunctuation(ChatSentence sentence) {
-			ChatWord word = sentence.getLastWord();
-			NavigableMap<Integer, Collection<Character>> punc = word.getPunctuation();
-			if (punc.size()>0 && random.nextInt(100)<PUNCTUATION_CHANCE){
-				Integer puncMax = punc.lastKey();
-				Collection<Character> bestPunc = punc.get(puncMax);
-				Character puncPick = null;
-				for (Integer freq : punc.descendingKeySet()) {
-					for (Character curPunc : punc.get(freq)) {
-							if (random.nextInt(100)>=PUNCTUATION_SKIP_CHANCE) {
-								puncPick = curPunc;
-								break;
-							}
+		private static int agreed(List<ChatSentence> looks, int from) {
+			List<Object> first = looks.get(0).getWords();
+			int to = from;
+			boolean same = true;
+			while (same && to < first.size()) {
+				for (ChatSentence look : looks) {
+					List<Object> tokens = look.getWords();
+					if (to >= tokens.size() || !tokens.get(to).equals(first.get(to))) {
+						same = false;
+						break;
 					}
-					if (puncPick != null) break;
-				}
-				if (puncPick != null) {
-					sentence.addCharacter(puncPick);
 				}
+				if (same) to++;
 			}
-		}
-
-		@Override
-		public String toString() {
-			StringBuilder sb = new StringBuilder();
-			sb.append("ChatBrain[");
-			sb.append(observedWords.size());
-			sb.append("]:");
-			for (Map.Entry<String,ChatWord> cw : observedWords.entrySet()) {
-				sb.append("\n\t");
-				sb.append(wordFrequencyLookup.get(cw.getValue()));
-				sb.append("\t");
-				sb.append(cw.getValue());
+			while (to > from && !wordEnds(looks, to)) {
+				to--;
 			}
-			return sb.toString();
+			return to;
 		}
 
-	}
-
-	/**
-	 * Useful helper class to construct sentences.
-	 */
-	static class ChatSentence implements Cloneable {
-		/**
-		 * List of words.
-		 */
-		private List<Object> words;
 		/**
-		 * Quick search construct to have O(ln) lookup times.
+		 * Helper to tell whether a word and its punctuation end right
+		 * before position at in each look.
 		 */
-		private Set<Object> contains;
+		private static boolean wordEnds(List<ChatSentence> looks, int at) {
+			for (ChatSentence look : looks) {
+				List<Object> tokens = look.getWords();
+				if (at < tokens.size() && !(tokens.get(at) instanceof ChatWord)) {
+					return false;
+				}
+			}
+			return true;
+		}
 
 		/**
-		 * Starts to build a sentence with a single word as anchor
+		 * Helper to find where the word at position from ends, along
+		 * with any punctuation after it.
 		 */
-		public ChatSentence(ChatWord anchor) {
-			if (anchor == null) {
-				throw new IllegalArgumentException("Anchor must not be null");
+		private static int nextWordEnd(List<Object> tokens, int from) {
+			int to = from;
+			if (to < tokens.size()) {
+				to++;
+				while (to < tokens.size() && !(tokens.get(to) instanceof ChatWord)) {
+					to++;
+				}
 			}
-			words = new ArrayList<Object>();
-			contains = new HashSet<Object>();
-			words.add(anchor);
-			contains.add(anchor);
+			return to;
 		}
 
-		/** 
-		 * Starts a sentence using an existing ChatSentence. Also used for
-		 * cloning.
+		/**
+		 * Helper to write settled tokens of a streamed sentence. Returns
+		 * whether any word has been written so far.
+		 */
+		private boolean showTokens(PrintStream out, List<Object> tokens,
+				int from, int to, boolean shown) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = from; i < to; i++) {
+				Object o = tokens.get(i);
+				if (o instanceof ChatWord) {
+					ChatWord cw = (ChatWord) o;
+					if (cw.equals(ENDWORD) || cw.equals(startWord)) {
+						continue;
+					}
+					if (shown) {
+						sb.append(" ");
+					}
+					appendText(cw.getId(), sb);
+					shown = true;
+				} else {
+					sb.append(o);
+				}
+			}
+			out.print(sb);
+			out.flush();
+			return shown;
+		}
+
+		/**
+		 * Gets how long, in nanoseconds, the last streamed sentence took
+		 * to show its first word, or -1 if it showed none.
+		 */
+		public long getFirstWordLatency() {
+			return firstWordLatency;
+		}
+
+		/**
+		 * Helper to note a topic word as collected in a topic bitmask.
+		 * Only the first TranspositionTable.TOPIC_BITS topics have a bit.
+		 */
+		private static int collect(int collected, TopicSet topics, ChatWord word) {
+			int index = topics.indexOf(word);
+			return (index >= 0 && index < TranspositionTable.TOPIC_BITS) ?
+					collected | (1 << index) : collected;
+		}
+
+		/**
+		 * Helper to list the descendents of a word into a buffer, most
+		 * frequent first.
+		 */
+		protected void successors(ChatWord word, WordBuffer out) {
+			out.clear();
+			NavigableMap<Integer, Collection<ChatWord>> roots = word.getDescendents();
+			for (Integer freq : roots.descendingKeySet()) {
+				for (ChatWord curWord : roots.get(freq)) {
+					out.add(curWord.getId(), freq);
+				}
+			}
+		}
+
+		/**
+		 * Helper to list the antecedents of a word into a buffer, most
+		 * frequent first.
+		 */
+		protected void predecessors(ChatWord word, WordBuffer out) {
+			out.clear();
+			NavigableMap<Integer, Collection<ChatWord>> roots = word.getAntecedents();
+			for (Integer freq : roots.descendingKeySet()) {
+				for (ChatWord curWord : roots.get(freq)) {
+					out.add(curWord.getId(), freq);
+				}
+			}
+		}
+
+		/**
+		 * Picks the punctuation to follow a word, potentially.
+		 * Punctuation is considered most frequent first, and each has an
+		 * even chance of being skipped in favor of the next. Returns the
+		 * character, or -1 for none.
+		 */
+		protected int pickPunctuation(ChatWord word) {
+			int kinds = word.getPunctuationKinds();
+			if (kinds>0 && random.nextInt(100)<PUNCTUATION_CHANCE){
+				for (int i = 0; i < kinds; i++) {
+					if (random.nextInt(100)>=PUNCTUATION_SKIP_CHANCE) {
+						return punctuationSymbols.getCharacter(word.getPunctuationSymbol(i));
+					}
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Gets the threads for the Monte Carlo search, starting them when
+		 * first needed.
+		 */
+		protected synchronized ExecutorService workers() {
+			if (workers == null) {
+				workers = Executors.newFixedThreadPool(MCTS_THREADS, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "chatbot-mcts");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			return workers;
+		}
+
+		/**
+		 * Gets the lock overlays over this brain hold around each read of
+		 * it, or null if nothing changes it behind their backs.
+		 */
+		protected Lock readLock() {
+			return null;
+		}
+
+		/**
+		 * Gets the number of entries for the transposition table of the
+		 * depth first search.
+		 */
+		protected int transpositionEntries() {
+			return TRANSPOSITION_ENTRIES;
+		}
+
+		/**
+		 * Gets the most nodes the Monte Carlo search tree may grow to.
+		 */
+		protected int monteCarloNodes() {
+			return MCTS_NODES;
+		}
+
+		/**
+		 * Gets the character of a symbol in the punctuation table.
+		 */
+		protected char getPunctuationCharacter(int symbol) {
+			return punctuationSymbols.getCharacter(symbol);
+		}
+
+		/**
+		 * Compares the depth first and Monte Carlo searches, printing the
+		 * best sentence value each had reached at every elapsed time in
+		 * BENCHMARK_CHECKPOINTS, averaged over a number of trials. Both
+		 * searches get the same topics and depth in each trial. The
+		 * searches are run in steps, reading off the best sentence so far
+		 * at each checkpoint.
+		 */
+		public void benchmark(PrintStream out, int trials) {
+			int checkpoints = BENCHMARK_CHECKPOINTS.length;
+			double[] depthFirst = new double[checkpoints];
+			double[] monteCarloValues = new double[checkpoints];
+			if (search == null) {
+				search = new DepthFirstSearch();
+			}
+			if (monteCarlo == null) {
+				monteCarlo = new MonteCarloSearch();
+			}
+			for (int trial = 0; trial < trials; trial++) {
+				int maxDepth = NOMINAL_LENGTH+
+						random.nextInt(MAX_LENGTH - NOMINAL_LENGTH);
+				TopicSet topics = topicWords(TOPICS);
+
+				long started = System.currentTimeMillis();
+				search.start(new ChatSentence(startWord), topics, 0, 0, maxDepth);
+				for (int i = 0; i < checkpoints; i++) {
+					search.run(started + BENCHMARK_CHECKPOINTS[i]);
+					depthFirst[i] += search.result(new ChatSentence(startWord)) / trials;
+				}
+				search.discard();
+
+				started = System.currentTimeMillis();
+				monteCarlo.start(topics, maxDepth);
+				for (int i = 0; i < checkpoints; i++) {
+					monteCarlo.run(started + BENCHMARK_CHECKPOINTS[i]);
+					monteCarloValues[i] += monteCarlo.getBestValue() / trials;
+				}
+			}
+			out.printf("Best sentence value reached, average of %d:\n", trials);
+			out.printf("%8s %12s %12s\n", "ms", SearchMode.DEPTH_FIRST, SearchMode.MONTE_CARLO);
+			for (int i = 0; i < checkpoints; i++) {
+				out.printf("%8d %12.3f %12.3f\n", BENCHMARK_CHECKPOINTS[i],
+						depthFirst[i], monteCarloValues[i]);
+			}
+		}
+
+		/**
+		 * Gets the value of the last sentence built by buildSentence.
+		 */
+		public double getSentenceValue() {
+			return sentenceValue;
+		}
+
+		/**
+		 * Builds a sentence from the topic words outward, instead of
+		 * hoping a forward walk from the start word wanders into them.
+		 * For each topic word, most valuable first, the predecessor index
+		 * is searched backward to find a way from the start word to the
+		 * topic, and the successors forward to find a way on to the
+		 * ENDWORD. The two halves are joined at the topic word, and the
+		 * joined sentence worth the most (topic words plus the usual
+		 * random preference for ending) replaces the given sentence.
+		 * Returns the value of the sentence chosen, or negative infinity
+		 * if no topic could be bridged, leaving the sentence alone.
+		 */
+		public double buildBidirectional(ChatSentence sentence,
+				final Set<ChatWord> topics, int maxDepth, long timeout) {
+			List<ChatWord> ordered = new ArrayList<ChatWord>(topics);
+			Collections.sort(ordered, new Comparator<ChatWord>() {
+				@Override
+				public int compare(ChatWord a, ChatWord b) {
+					return Double.compare(topicValue(b, topics), topicValue(a, topics));
+				}
+			});
+			double bestSentenceValue = Double.NEGATIVE_INFINITY;
+			ChatSentence bestSentence = null;
+			for (ChatWord topic : ordered) {
+				if (System.currentTimeMillis() > timeout) break;
+				List<ChatWord> prefix = bridge(topic, startWord, true,
+						Collections.<ChatWord>emptySet(), topics, maxDepth - 1, timeout);
+				if (prefix == null) continue;
+				Collections.reverse(prefix);
+				Set<ChatWord> used = new HashSet<ChatWord>(prefix);
+				used.add(topic);
+				List<ChatWord> suffix = bridge(topic, ENDWORD, false,
+						used, topics, maxDepth - 1 - prefix.size(), timeout);
+				if (suffix == null) continue;
+
+				ChatSentence joined = new ChatSentence(sentence);
+				double value = random.nextDouble() * topWeight();
+				for (ChatWord word : prefix) {
+					value += topicValue(word, topics);
+					joined.addWord(word);
+					addPunctuation(joined);
+				}
+				value += topicValue(topic, topics);
+				joined.addWord(topic);
+				addPunctuation(joined);
+				for (ChatWord word : suffix) {
+					value += topicValue(word, topics);
+					joined.addWord(word);
+					addPunctuation(joined);
+				}
+				addPunctuation(joined);
+				joined.addWord(ENDWORD);
+				if (value > bestSentenceValue) {
+					bestSentenceValue = value;
+					bestSentence = joined;
+				}
+			}
+			if (bestSentence != null) {
+				sentence.replaceSentence(bestSentence);
+			}
+			return bestSentenceValue;
+		}
+
+		/**
+		 * Helper for buildBidirectional. Breadth first search from a word
+		 * to a goal word, along antecedents when walking backward or
+		 * descendents when walking forward. Like the depth first search,
+		 * only a few of the most frequent connections of each word are
+		 * followed, and each has a chance of being skipped. Up to
+		 * BRIDGE_CANDIDATES paths are collected and the one holding the
+		 * most topic value wins, shorter first on ties. Returns the words
+		 * strictly between the word and the goal, in walking order, or
+		 * null if the goal could not be reached.
+		 */
+		private List<ChatWord> bridge(ChatWord from, ChatWord goal, boolean backward,
+				Set<ChatWord> avoid, Set<ChatWord> topics, int maxDepth, long timeout) {
+			Map<ChatWord, ChatWord> parents = new HashMap<ChatWord, ChatWord>();
+			Map<ChatWord, Integer> depths = new HashMap<ChatWord, Integer>();
+			Deque<ChatWord> frontier = new ArrayDeque<ChatWord>();
+			List<ChatWord> reached = new ArrayList<ChatWord>();
+			WordBuffer roots = new WordBuffer();
+			parents.put(from, null);
+			depths.put(from, 0);
+			frontier.add(from);
+			while (!frontier.isEmpty() && reached.size() < BRIDGE_CANDIDATES &&
+					System.currentTimeMillis() <= timeout) {
+				ChatWord word = frontier.poll();
+				int depth = depths.get(word);
+				expandedNodes++;
+				if (backward) {
+					predecessors(word, roots);
+				} else {
+					successors(word, roots);
+				}
+				if (roots.indexOf(goal.getId()) >= 0) {
+					reached.add(word);
+				}
+				if (depth >= maxDepth) continue;
+				int maxBranches = MIN_BRANCHES + random.nextInt(MAX_BRANCHES - MIN_BRANCHES);
+				int curBranches = 0;
+				for (int i = 0; i < roots.size() && curBranches < maxBranches; i++) {
+					ChatWord curWord = word(roots.getId(i));
+					if (curWord.equals(goal) || curWord.equals(ENDWORD) ||
+							curWord.equals(startWord) || avoid.contains(curWord) ||
+							parents.containsKey(curWord) ||
+							random.nextInt(100) < SKIP_CHANCE) {
+						continue;
+					}
+					parents.put(curWord, word);
+					depths.put(curWord, depth + 1);
+					frontier.add(curWord);
+					curBranches++;
+				}
+			}
+			List<ChatWord> bestPath = null;
+			double bestPathValue = Double.NEGATIVE_INFINITY;
+			for (ChatWord end : reached) {
+				List<ChatWord> path = new ArrayList<ChatWord>();
+				double pathValue = 0.0;
+				for (ChatWord cw = end; !cw.equals(from); cw = parents.get(cw)) {
+					path.add(cw);
+					pathValue += topicValue(cw, topics);
+				}
+				if (pathValue > bestPathValue) {
+					Collections.reverse(path);
+					bestPath = path;
+					bestPathValue = pathValue;
+				}
+			}
+			return bestPath;
+		}
+
+		/** Helper giving the value a word adds to a sentence. */
+		private double topicValue(ChatWord word, Set<ChatWord> topics) {
+			return topics.contains(word) ? weight(word) : 0.0;
+		}
+
+		/**
+		 * Sets how buildSentence searches for sentences.
+		 */
+		public void setSearchMode(SearchMode mode) {
+			searchMode = mode;
+		}
+
+		/**
+		 * Gets how buildSentence searches for sentences.
+		 */
+		public SearchMode getSearchMode() {
+			return searchMode;
+		}
+
+		/**
+		 * Gets how many search nodes the last sentence expanded.
+		 */
+		public long getExpandedNodes() {
+			return expandedNodes;
+		}
+
+		/**
+		 * Sets the most nodes the depth first search may expand for a
+		 * sentence, or 0 for no limit but TIMEOUT. A fixed budget makes
+		 * a sentence cost the same work however fast the machine is.
+		 */
+		public void setNodeBudget(long nodeBudget) {
+			this.nodeBudget = nodeBudget;
+		}
+
+		/**
+		 * Gets the node budget of the depth first search.
+		 */
+		public long getNodeBudget() {
+			return nodeBudget;
+		}
+
+		/**
+		 * Adds punctuation to a sentence, potentially.
+		 */
+		public void addPunctuation(ChatSentence sentence) {
+			int punc = pickPunctuation(sentence.getLastWord());
+			if (punc >= 0) {
+				sentence.addCharacter((char) punc);
+			}
+		}
+
+		/**
+		 * DepthFirstSearch is the sentence search behind buildSentence.
+		 * It uses the brain's word frequency records to prefer to build
+		 * on-topic sentences.
+		 * Feature highlights:
+		 *  - There is a built-in depth maximum to prevent too much looping
+		 *  - Loops are detected directly as words are added, and while
+		 *    they are technically allowed, there is a high chance that
+		 *    loops will be avoided.
+		 *  - This is a depth-first search, so the depth maximum and timeout
+		 *    together help encourage branch pruning.
+		 *  - The maximizing function is on-topic-ness, with a small
+		 *    preference for ending sentences.
+		 *  - Finished subtrees are remembered in the transposition table,
+		 *    keyed on the word, the remaining depth and the topic words
+		 *    collected so far, and reused unless they would loop.
+		 * The search keeps its own stack of frames, one per word of the
+		 * sentence being tried, instead of recursing. That lets it stop
+		 * at any node when time runs out and pick up again later: if the
+		 * next turn's topics are largely the same, the search resumes
+		 * from where it stopped, rescoring what it found so far against
+		 * the new topics, so effort carries over from turn to turn. A
+		 * search that finished has nothing left to resume, so the next
+		 * turn starts afresh.
+		 */
+		private class DepthFirstSearch {
+			/** Depth of the whole sentence the search may reach. */
+			private int maxDepth;
+			/** Depth of the prefix the search builds on. */
+			private int baseDepth;
+			/** Topic words the search is scored against. */
+			private TopicSet topics;
+			/** Ids of the topic words, to tell whether topics changed. */
+			private int[] topicIds;
+			/** Number of topic ids. */
+			private int topicCount;
+			/** The words before the root frame, for loop checks. */
+			private ChatSentence prefix;
+			/** Topic bitmask of the prefix. */
+			private int prefixCollected;
+			/** Level of the frame being searched, or -1 when finished. */
+			private int top;
+			/** Whether there is a search to resume. */
+			private boolean resumable;
+
+			// One entry per frame, indexed by level.
+			/** Word id of each frame. */
+			private int[] words;
+			/** Punctuation after the word of each frame, or -1. */
+			private int[] puncs;
+			/** Value of the sentence up to each frame. */
+			private double[] values;
+			/** Topic bitmask of the sentence up to each frame. */
+			private int[] collected;
+			/** Transposition key of each frame. */
+			private long[] keys;
+			/** Snapshot of each frame's descendents. */
+			private WordBuffer[] children;
+			/** Next descendent to consider in each frame. */
+			private int[] cursors;
+			/** Branches entered from each frame. */
+			private int[] branches;
+			/** Branches each frame may enter. */
+			private int[] maxBranches;
+			/** Value of the best sentence found through each frame. */
+			private double[] bestValues;
+			/** Best suffix found below each frame, as tokens. */
+			private int[][] bestTokens;
+			/** Number of tokens in each best suffix. */
+			private int[] bestLengths;
+
+			/** Tokens of the sentence result() puts together. */
+			private int[] resultTokens;
+
+			/**
+			 * Sets up the stack, deep enough for the longest sentence.
+			 */
+			public DepthFirstSearch() {
+				int levels = MAX_LENGTH + 1;
+				int stride = 2 * MAX_LENGTH + 2;
+				topicIds = new int[TOPICS];
+				words = new int[levels];
+				puncs = new int[levels];
+				values = new double[levels];
+				collected = new int[levels];
+				keys = new long[levels];
+				children = new WordBuffer[levels];
+				cursors = new int[levels];
+				branches = new int[levels];
+				maxBranches = new int[levels];
+				bestValues = new double[levels];
+				bestTokens = new int[levels][stride];
+				bestLengths = new int[levels];
+				resultTokens = new int[stride];
+				for (int i = 0; i < levels; i++) {
+					children[i] = new WordBuffer();
+				}
+				if (transpositions == null) {
+					transpositions = new TranspositionTable(transpositionEntries(), stride);
+				}
+			}
+
+			/**
+			 * Starts a new search for the rest of a sentence, which so far
+			 * is prefix, with the given topic bitmask and depth.
+			 */
+			public void start(ChatSentence prefix, TopicSet topics, int prefixCollected,
+					int depth, int maxDepth) {
+				this.prefix = prefix;
+				this.prefixCollected = prefixCollected;
+				this.baseDepth = depth;
+				this.maxDepth = maxDepth;
+				noteTopics(topics);
+				transpositions.clear();
+				top = -1;
+				enter(0, prefix.getLastWord().getId(), -1, 0.0, prefixCollected);
+				resumable = true;
+			}
+
+			/**
+			 * Picks up the search kept from the last turn, if it ran out of
+			 * time and the topics are largely the same. Only the frontier
+			 * is kept: the best sentences the open frames had found are
+			 * forgotten, or last turn's reply would just win again. Returns
+			 * false if there was nothing to resume.
+			 */
+			public boolean resume(TopicSet topics) {
+				if (!resumable || top < 0 || baseDepth != 0) {
+					return false;
+				}
+				int shared = 0;
+				for (int i = 0; i < topicCount; i++) {
+					if (topics.contains(word(topicIds[i]))) {
+						shared++;
+					}
+				}
+				if (shared < Math.min(RESUME_TOPICS, topics.size())) {
+					return false;
+				}
+				noteTopics(topics);
+				transpositions.clear();
+				for (int level = 0; level <= top; level++) {
+					if (level > 0) {
+						ChatWord word = word(words[level]);
+						values[level] = values[level - 1] + topicValue(word, topics);
+						collected[level] = collect(collected[level - 1], topics, word);
+					}
+					keys[level] = TranspositionTable.key(words[level],
+							maxDepth - baseDepth - level, collected[level]);
+					bestValues[level] = values[level];
+					bestLengths[level] = 0;
+				}
+				return true;
+			}
+
+			/**
+			 * Forgets the search, so the next turn starts afresh.
+			 */
+			public void discard() {
+				resumable = false;
+			}
+
+			/**
+			 * Searches until the search is finished, the timeout is
+			 * reached or the node budget is spent. Returns whether the
+			 * search finished.
+			 */
+			public boolean run(long timeout) {
+				while (top >= 0) {
+					if (System.currentTimeMillis() > timeout ||
+							(nodeBudget > 0 && expandedNodes >= nodeBudget)) {
+						return false;
+					}
+					int level = top;
+					WordBuffer roots = children[level];
+					if (branches[level] < maxBranches[level] && cursors[level] < roots.size()) {
+						ChatWord curWord = word(roots.getId(cursors[level]++));
+						int chance = random.nextInt(100);
+						if (curWord.equals(ENDWORD)) {
+							if (chance>=SKIP_CHANCE) {
+								double endValue = random.nextDouble() * topWeight();
+								/* The endword's value is a random portion of
+								 * the highest frequency word's value, so it's
+								 * comparable, also gives a slight preference
+								 * to ending sentences.*/
+								if (values[level]+endValue > bestValues[level]) {
+									bestValues[level] = values[level]+endValue;
+									int length = 0;
+									// Try to add punctuation if possible.
+									int punc = pickPunctuation(word(words[level]));
+									if (punc >= 0) {
+										bestTokens[level][length++] = ~punc;
+									}
+									bestTokens[level][length++] = curWord.getId(); // then end.
+									bestLengths[level] = length;
+								}
+								branches[level]++;
+							}
+						} else {
+							boolean loop = onPath(curWord, level);
+							/* Include a little bit of chance in the inclusion
+							 * of any given word, whether a loop or not.*/
+							if ( (!loop&&chance>=SKIP_CHANCE) ||
+									(loop&&chance<LOOP_CHANCE)) {
+								branches[level]++;
+								enter(level + 1, curWord.getId(), pickPunctuation(curWord),
+										values[level] + topicValue(curWord, topics),
+										collect(collected[level], topics, curWord));
+							}
+						}
+					} else if (branches[level] < MIN_BRANCHES && cursors[level] >= roots.size() &&
+							random.nextInt() < BREADTH_ASSURANCE_CHANCE) {
+						// This is to combat prematurely ended sentences.
+						cursors[level] = 0;
+					} else {
+						transpositions.store(keys[level], bestValues[level] - values[level],
+								bestTokens[level], bestLengths[level]);
+						complete(level);
+					}
+				}
+				return true;
+			}
+
+			/**
+			 * Appends the best sentence found so far to a sentence, and
+			 * returns its value. If the search is unfinished, the frames
+			 * still open are folded together the same way finishing them
+			 * would, without disturbing them.
+			 */
+			public double result(ChatSentence sentence) {
+				int level = Math.max(top, 0);
+				int length = bestLengths[level];
+				double value = bestValues[level];
+				System.arraycopy(bestTokens[level], 0, resultTokens, 0, length);
+				for (level--; level >= 0; level--) {
+					if (value > bestValues[level]) {
+						length = prepend(level + 1, resultTokens, length);
+					} else {
+						value = bestValues[level];
+						length = bestLengths[level];
+						System.arraycopy(bestTokens[level], 0, resultTokens, 0, length);
+					}
+				}
+				for (int i = 0; i < length; i++) {
+					int token = resultTokens[i];
+					if (token >= 0) {
+						sentence.addWord(word(token));
+					} else {
+						sentence.addCharacter((char) ~token);
+					}
+				}
+				return value;
+			}
+
+			/**
+			 * Helper to move to a word at a level. Words at the depth limit
+			 * and words whose suffix is remembered are answered on the
+			 * spot; anything else gets a new frame to search.
+			 */
+			private void enter(int level, int word, int punc, double value, int topicMask) {
+				words[level] = word;
+				puncs[level] = punc;
+				values[level] = value;
+				collected[level] = topicMask;
+				bestValues[level] = value;
+				bestLengths[level] = 0;
+				top = level;
+				int remaining = maxDepth - baseDepth - level;
+				if (remaining <= 0) {
+					complete(level);
+					return;
+				}
+				keys[level] = TranspositionTable.key(word, remaining, topicMask);
+				// With more topics than the mask has bits, keys can't tell
+				// topic masks apart, so nothing remembered can be trusted.
+				int entry = (topicCount <= TranspositionTable.TOPIC_BITS) ?
+						transpositions.find(keys[level]) : -1;
+				if (entry >= 0 && reusable(entry, level)) {
+					int length = transpositions.getLength(entry);
+					for (int i = 0; i < length; i++) {
+						bestTokens[level][i] = transpositions.getToken(entry, i);
+					}
+					bestLengths[level] = length;
+					bestValues[level] = value + transpositions.getValue(entry);
+					complete(level);
+					return;
+				}
+				expandedNodes++;
+				successors(word(word), children[level]);
+				cursors[level] = 0;
+				branches[level] = 0;
+				// Determine how many branches to enter from this node
+				maxBranches[level] = MIN_BRANCHES + random.nextInt(MAX_BRANCHES - MIN_BRANCHES);
+			}
+
+			/**
+			 * Helper to close a frame, handing its best sentence to the
+			 * frame below if it beats what that frame has.
+			 */
+			private void complete(int level) {
+				top = level - 1;
+				if (level > 0 && bestValues[level] > bestValues[level - 1]) {
+					bestValues[level - 1] = bestValues[level];
+					System.arraycopy(bestTokens[level], 0, bestTokens[level - 1], 0,
+							bestLengths[level]);
+					bestLengths[level - 1] = prepend(level, bestTokens[level - 1],
+							bestLengths[level]);
+				}
+			}
+
+			/**
+			 * Helper to put the word and punctuation of a level in front of
+			 * the first length tokens of a buffer. Returns the new length.
+			 */
+			private int prepend(int level, int[] tokens, int length) {
+				int shift = (puncs[level] >= 0) ? 2 : 1;
+				System.arraycopy(tokens, 0, tokens, shift, length);
+				tokens[0] = words[level];
+				if (shift == 2) {
+					tokens[1] = ~puncs[level];
+				}
+				return length + shift;
+			}
+
+			/**
+			 * Helper to check whether a remembered suffix can be used at a
+			 * level without looping back through the sentence.
+			 */
+			private boolean reusable(int entry, int level) {
+				int length = transpositions.getLength(entry);
+				for (int i = 0; i < length; i++) {
+					int token = transpositions.getToken(entry, i);
+					if (token >= 0 && onPath(word(token), level)) {
+						return false;
+					}
+				}
+				return true;
+			}
+
+			/**
+			 * Helper to check whether a word is already in the sentence up
+			 * to and including a level.
+			 */
+			private boolean onPath(ChatWord word, int level) {
+				if (prefix.hasWord(word)) {
+					return true;
+				}
+				for (int i = 1; i <= level; i++) {
+					if (words[i] == word.getId()) {
+						return true;
+					}
+				}
+				return false;
+			}
+
+			/** Helper to remember the topics being searched for. */
+			private void noteTopics(TopicSet topics) {
+				this.topics = topics;
+				topicCount = 0;
+				for (ChatWord word : topics) {
+					if (topicCount == topicIds.length) {
+						topicIds = Arrays.copyOf(topicIds, topicCount * 2);
+					}
+					topicIds[topicCount++] = word.getId();
+				}
+			}
+		}
+
+		/**
+		 * MonteCarloSearch builds sentences by Monte Carlo tree search
+		 * over the descendents of each word. Instead of spreading effort
+		 * evenly like the depth first search, each simulation walks down
+		 * the tree it has grown so far picking the child with the best
+		 * upper confidence bound (UCT), grows the tree by one word, and
+		 * then plays the sentence out at random, each next word chosen in
+		 * proportion to how often it was seen after the last. The
+		 * sentence is scored like the depth first search scores it: the
+		 * value of topic words plus a random bonus for ending, and that
+		 * score is credited back up the tree, so promising branches get
+		 * more simulations. The best sentence any simulation found is the
+		 * answer.
+		 * Simulations run on MCTS_THREADS threads at once. The tree is
+		 * shared and only touched while holding its lock; the random
+		 * play-outs, where the time goes, run outside it. Every branch a
+		 * thread is working on carries a virtual loss until the result
+		 * is in, which steers the other threads to different branches.
+		 * A node is exhausted once every sentence through it has been
+		 * scored: it ends the sentence or is at the most words allowed
+		 * and has been simulated, has no words left to follow it, or has
+		 * been expanded and all its children are exhausted.
+		 * Selection passes over exhausted children, and the search stops
+		 * early once the root is exhausted, as there is nothing left to
+		 * find.
+		 */
+		private class MonteCarloSearch {
+			/** Word id of each tree node. */
+			private int[] nodeWords;
+			/** Parent of each node; the root has -1. */
+			private int[] nodeParents;
+			/** Index of each node's first child, or -1 until expanded. */
+			private int[] nodeChildren;
+			/** Number of children of each node. */
+			private int[] nodeChildCounts;
+			/** Words after the start word at each node. */
+			private int[] nodeDepths;
+			/** Simulations through each node. */
+			private int[] nodeVisits;
+			/** Simulations through each node still being played out. */
+			private int[] nodeVirtualLosses;
+			/** Total score of the simulations through each node. */
+			private double[] nodeTotals;
+			/** Whether every sentence through each node is in the tree. */
+			private boolean[] nodeExhausted;
+			/** Number of nodes in use. */
+			private int nodeCount;
+
+			/** Topic words the sentences are scored against. */
+			private TopicSet topics;
+			/** Most words a sentence may have. */
+			private int maxDepth;
+			/** Highest score seen, to bring scores into 0..1 for UCT. */
+			private double scoreScale;
+			/** Buffer for the descendents of a node being expanded. */
+			private WordBuffer expansion;
+			/** Best sentence found, as word ids after the start word. */
+			private int[] bestPath;
+			/** Number of words in the best sentence. */
+			private int bestLength;
+			/** Score of the best sentence. */
+			private double bestValue;
+
+			/**
+			 * Sets up the node pool, as big as monteCarloNodes says.
+			 */
+			public MonteCarloSearch() {
+				int nodes = monteCarloNodes();
+				nodeWords = new int[nodes];
+				nodeParents = new int[nodes];
+				nodeChildren = new int[nodes];
+				nodeChildCounts = new int[nodes];
+				nodeDepths = new int[nodes];
+				nodeVisits = new int[nodes];
+				nodeVirtualLosses = new int[nodes];
+				nodeTotals = new double[nodes];
+				nodeExhausted = new boolean[nodes];
+				bestPath = new int[MAX_LENGTH + 1];
+				expansion = new WordBuffer();
+			}
+
+			/**
+			 * Starts a new search with a tree of just the start word.
+			 */
+			public synchronized void start(TopicSet topics, int maxDepth) {
+				this.topics = topics;
+				this.maxDepth = maxDepth;
+				nodeCount = 0;
+				addNode(startWord.getId(), -1, 0);
+				scoreScale = 0.0;
+				bestLength = 0;
+				bestValue = 0.0;
+			}
+
+			/**
+			 * Runs simulations on all threads until the timeout, or until
+			 * the tree is exhausted.
+			 */
+			public void run(final long timeout) {
+				ExecutorService workers = workers();
+				List<Future<?>> running = new ArrayList<Future<?>>();
+				for (int i = 1; i < MCTS_THREADS; i++) {
+					final Random simRandom = new Random(random.nextLong());
+					running.add(workers.submit(new Runnable() {
+						@Override
+						public void run() {
+							simulate(timeout, simRandom);
+						}
+					}));
+				}
+				simulate(timeout, new Random(random.nextLong()));
+				for (Future<?> f : running) {
+					try {
+						f.get();
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					} catch (ExecutionException ee) {
+						throw new IllegalStateException("Monte Carlo simulation failed", ee.getCause());
+					}
+				}
+			}
+
+			/**
+			 * Appends the best sentence found to a sentence, punctuated the
+			 * usual way, and returns its score.
+			 */
+			public synchronized double result(ChatSentence sentence) {
+				for (int i = 0; i < bestLength; i++) {
+					ChatWord word = word(bestPath[i]);
+					if (word.equals(ENDWORD)) {
+						addPunctuation(sentence);
+						sentence.addWord(word);
+					} else {
+						sentence.addWord(word);
+						addPunctuation(sentence);
+					}
+				}
+				return bestValue;
+			}
+
+			/**
+			 * Gets the score of the best sentence found so far.
+			 */
+			public synchronized double getBestValue() {
+				return bestValue;
+			}
+
+			/**
+			 * Helper running simulations, one after another, until the
+			 * timeout or until the tree is exhausted.
+			 */
+			private void simulate(long timeout, Random simRandom) {
+				int[] path = new int[MAX_LENGTH + 1];
+				WordBuffer next = new WordBuffer();
+				long expanded = 0;
+				while (System.currentTimeMillis() <= timeout) {
+					int leaf;
+					int length;
+					synchronized (this) {
+						if (nodeExhausted[0]) {
+							break;
+						}
+						leaf = select(simRandom);
+						length = 0;
+						for (int n = leaf; nodeParents[n] >= 0; n = nodeParents[n]) {
+							length++;
+						}
+						for (int n = leaf, i = length - 1; i >= 0; n = nodeParents[n], i--) {
+							path[i] = nodeWords[n];
+						}
+						if (nodeChildren[leaf] >= 0) {
+							expanded++;
+						}
+					}
+					// Play the sentence out at random, outside the lock
+					boolean ended = length > 0 && path[length - 1] == ENDWORD.getId();
+					int word = (length > 0) ? path[length - 1] : startWord.getId();
+					while (!ended && length < maxDepth) {
+						successors(word(word), next);
+						expanded++;
+						word = pickWeighted(next, path, length, simRandom);
+						if (word < 0) break;
+						path[length++] = word;
+						ended = word == ENDWORD.getId();
+					}
+					double score = 0.0;
+					for (int i = 0; i < length; i++) {
+						score += topicValue(word(path[i]), topics);
+					}
+					if (ended) {
+						score += simRandom.nextDouble() * topWeight();
+					}
+					synchronized (this) {
+						for (int n = leaf; n >= 0; n = nodeParents[n]) {
+							nodeVisits[n]++;
+							nodeVirtualLosses[n]--;
+							nodeTotals[n] += score;
+						}
+						if (score > scoreScale) {
+							scoreScale = score;
+						}
+						if (nodeWords[leaf] == ENDWORD.getId() || nodeDepths[leaf] >= maxDepth) {
+							exhaust(leaf);
+						}
+						if (score > bestValue) {
+							bestValue = score;
+							bestLength = length;
+							System.arraycopy(path, 0, bestPath, 0, length);
+						}
+						expandedNodes += expanded;
+						expanded = 0;
+					}
+				}
+			}
+
+			/**
+			 * Helper walking down the tree by UCT to a node to simulate
+			 * from, expanding it if it has been visited before. Every node
+			 * on the way takes a virtual loss. Call holding the lock.
+			 */
+			private int select(Random simRandom) {
+				int node = 0;
+				nodeVirtualLosses[node]++;
+				while (true) {
+					int word = nodeWords[node];
+					if (word == ENDWORD.getId() || nodeDepths[node] >= maxDepth) {
+						return node; // a finished sentence
+					}
+					if (nodeChildren[node] < 0) {
+						if (nodeVisits[node] + nodeVirtualLosses[node] <= 1 && node != 0) {
+							return node; // play out new nodes before growing them
+						}
+						if (!expand(node)) {
+							// The pool is full, so it can't grow. Give it some
+							// play-outs for each child it would have had.
+							if (nodeVisits[node] >= MCTS_FULL_PLAYOUTS * expansion.size()) {
+								exhaust(node);
+							}
+							return node;
+						}
+					}
+					if (nodeChildCounts[node] == 0) {
+						exhaust(node); // a dead end, nothing can follow
+						return node;
+					}
+					node = bestChild(node);
+					nodeVirtualLosses[node]++;
+				}
+			}
+
+			/**
+			 * Helper picking the child with the highest upper confidence
+			 * bound. Virtual losses count as visits that scored nothing.
+			 * Unvisited children come first, most frequent first, and
+			 * exhausted children are passed over.
+			 */
+			private int bestChild(int node) {
+				int first = nodeChildren[node];
+				double logVisits = Math.log(Math.max(1, nodeVisits[node] + nodeVirtualLosses[node]));
+				double scale = (scoreScale > 0.0) ? scoreScale : 1.0;
+				int best = first;
+				double bestBound = Double.NEGATIVE_INFINITY;
+				for (int child = first; child < first + nodeChildCounts[node]; child++) {
+					if (nodeExhausted[child]) {
+						continue;
+					}
+					int visits = nodeVisits[child] + nodeVirtualLosses[child];
+					if (visits == 0) {
+						return child;
+					}
+					double bound = nodeTotals[child] / visits / scale +
+							MCTS_EXPLORATION * Math.sqrt(logVisits / visits);
+					if (bound > bestBound) {
+						bestBound = bound;
+						best = child;
+					}
+				}
+				return best;
+			}
+
+			/**
+			 * Helper adding the descendents of a node as its children,
+			 * leaving out words already in its sentence. Returns false if
+			 * the node pool is full.
+			 */
+			private boolean expand(int node) {
+				WordBuffer roots = expansion;
+				successors(word(nodeWords[node]), roots);
+				if (nodeCount + roots.size() > nodeWords.length) {
+					return false;
+				}
+				nodeChildren[node] = nodeCount;
+				for (int i = 0; i < roots.size(); i++) {
+					int word = roots.getId(i);
+					if (!onBranch(node, word)) {
+						addNode(word, node, nodeDepths[node] + (word == ENDWORD.getId() ? 0 : 1));
+					}
+				}
+				nodeChildCounts[node] = nodeCount - nodeChildren[node];
+				return true;
+			}
+
+			/**
+			 * Helper marking a node exhausted, and each parent above it
+			 * whose children are now all exhausted. Call holding the lock.
+			 */
+			private void exhaust(int node) {
+				while (node >= 0 && !nodeExhausted[node]) {
+					nodeExhausted[node] = true;
+					node = nodeParents[node];
+					if (node >= 0) {
+						int first = nodeChildren[node];
+						for (int child = first; child < first + nodeChildCounts[node]; child++) {
+							if (!nodeExhausted[child]) {
+								return;
+							}
+						}
+					}
+				}
+			}
+
+			/** Helper checking whether a word is on the branch to a node. */
+			private boolean onBranch(int node, int word) {
+				for (int n = node; n >= 0; n = nodeParents[n]) {
+					if (nodeWords[n] == word) {
+						return true;
+					}
+				}
+				return false;
+			}
+
+			/** Helper to take a node from the pool. */
+			private void addNode(int word, int parent, int depth) {
+				nodeWords[nodeCount] = word;
+				nodeParents[nodeCount] = parent;
+				nodeChildren[nodeCount] = -1;
+				nodeChildCounts[nodeCount] = 0;
+				nodeDepths[nodeCount] = depth;
+				nodeVisits[nodeCount] = 0;
+				nodeVirtualLosses[nodeCount] = 0;
+				nodeTotals[nodeCount] = 0.0;
+				nodeExhausted[nodeCount] = false;
+				nodeCount++;
+			}
+
+			/**
+			 * Helper choosing the next word of a play-out in proportion to
+			 * how often each was seen. Words already in the sentence are
+			 * mostly avoided, as in the depth first search. Returns -1 if
+			 * no word could be chosen.
+			 */
+			private int pickWeighted(WordBuffer next, int[] path, int length, Random simRandom) {
+				int total = 0;
+				for (int i = 0; i < next.size(); i++) {
+					total += next.getCount(i);
+				}
+				for (int tries = 0; total > 0 && tries < MCTS_ROLLOUT_TRIES; tries++) {
+					int pick = simRandom.nextInt(total);
+					int i = 0;
+					while (pick >= next.getCount(i)) {
+						pick -= next.getCount(i++);
+					}
+					int word = next.getId(i);
+					boolean loop = word == startWord.getId();
+					for (int j = 0; j < length && !loop; j++) {
+						loop = path[j] == word;
+					}
+					if (!loop || simRandom.nextInt(100) < LOOP_CHANCE) {
+						return word;
+					}
+				}
+				return -1;
+			}
+		}
+
+		/**
+		 * Opens an overlay for one conversation over this brain. See
+		 * BrainOverlay.
+		 */
+		public BrainOverlay openOverlay() {
+			return new BrainOverlay(this);
+		}
+
+		/**
+		 * Folds what a batch of overlays over this brain have learned into
+		 * it: their new words, edges and punctuation. Topic weights stay
+		 * with each conversation and are not folded. The overlays can't
+		 * be used afterwards, so open new ones for the conversations.
+		 * Nothing may be using this brain or its overlays while folding.
+		 */
+		public void fold(Collection<BrainOverlay> overlays) {
+			for (BrainOverlay overlay : overlays) {
+				overlay.foldInto(this);
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("ChatBrain[");
+			sb.append(observedWords.size());
+			sb.append("]:");
+			for (ChatWord cw : observedWords) {
+				sb.append("\n\t");
+				sb.append(wordFrequencyLookup.get(cw));
+				sb.append("\t");
+				dictionary.appendText(cw.getId(), sb);
+				sb.append("\t");
+				sb.append(cw);
+			}
+			return sb.toString();
+		}
+
+	}
+
+	/**
+	 * BrainOverlay is one conversation's own layer over a shared
+	 * ChatbotBrain. The base holds the vocabulary, edges and punctuation
+	 * and is only read through the overlay; the overlay keeps the
+	 * conversation's topic weights and window, plus whatever it learns,
+	 * as sparse deltas on top. Words the base doesn't know get ids from
+	 * LOCAL_ID_BASE up, in a dictionary of the overlay's own. Topic
+	 * weights inherited from the base decay with a single scale instead
+	 * of word by word.
+	 * Opening one costs a few kilobytes. The search scratch is only
+	 * made when the overlay first builds a sentence, and is kept small
+	 * (OVERLAY_TRANSPOSITION_ENTRIES, OVERLAY_MCTS_NODES); the Monte
+	 * Carlo threads are the base's. Many overlays can
+	 * search at once, as long as nothing learns into the base meanwhile.
+	 * If the base has a readLock, as a FollowerBrain does, overlays hold
+	 * it around each read of the base, so the base can change between
+	 * reads but never during one. What they've learned can be folded back into the base
+	 * in batches with ChatbotBrain.fold.
+	 */
+	static class BrainOverlay extends ChatbotBrain {
+		/** The id of the first word only an overlay knows. */
+		public static final int LOCAL_ID_BASE = 1 << 30;
+		/** Entries in an overlay's transposition table */
+		public static final int OVERLAY_TRANSPOSITION_ENTRIES = 1 << 7;
+		/** Most nodes an overlay's Monte Carlo search tree may grow to */
+		public static final int OVERLAY_MCTS_NODES = 1 << 11;
+
+		/** The shared brain underneath. */
+		private ChatbotBrain base;
+
+		/** How much the base's topic weights have decayed, as a scale. */
+		private double baseScale;
+
+		/** Words the base doesn't know. */
+		private ChatDictionary localDictionary;
+
+		/** The ChatWords for localDictionary, indexed by its ids. */
+		private List<ChatWord> localWords;
+
+		/** Edges learned here, by the word they leave. */
+		private Map<ChatWord, WordBuffer> edgeDeltas;
+
+		/** The same edges, by the word they arrive at. */
+		private Map<ChatWord, WordBuffer> antecedentDeltas;
+
+		/**
+		 * Punctuation learned here, as counts by character. It only
+		 * matters once folded, so sentences built by the overlay don't
+		 * use it.
+		 */
+		private Map<ChatWord, WordBuffer> punctuationDeltas;
+
+		/** Whether this overlay has been folded into the base. */
+		private boolean folded;
+
+		/** The base's read lock, or null if it has none. */
+		private Lock baseLock;
+
+		/**
+		 * Opens an overlay over a brain.
+		 */
+		public BrainOverlay(ChatbotBrain base) {
+			super(base);
+			this.base = base;
+			baseScale = 1.0;
+			localDictionary = new ChatDictionary();
+			localWords = new ArrayList<ChatWord>();
+			localWords.add(null); // END_ID and START_ID are the base's
+			localWords.add(null);
+			edgeDeltas = new HashMap<ChatWord, WordBuffer>();
+			antecedentDeltas = new HashMap<ChatWord, WordBuffer>();
+			punctuationDeltas = new HashMap<ChatWord, WordBuffer>();
+			folded = false;
+			baseLock = base.readLock();
+		}
+
+		@Override
+		public void digestSentence(String sentence) {
+			checkOpen();
+			super.digestSentence(sentence);
+		}
+
+		@Override
+		public String buildSentence() {
+			checkOpen();
+			return super.buildSentence();
+		}
+
+		@Override
+		public String streamSentence(PrintStream out) {
+			checkOpen();
+			return super.streamSentence(out);
+		}
+
+		/**
+		 * Holds the base's read lock throughout, as the base's words are
+		 * listed by weight as it goes.
+		 */
+		@Override
+		public TopicSet topicWords(int maxTopics) {
+			lockBase();
+			try {
+				return super.topicWords(maxTopics);
+			} finally {
+				unlockBase();
+			}
+		}
+
+
+		/**
+		 * Finds a word in the overlay's own dictionary first. A word the
+		 * overlay learned stays its own even if the base comes to know it
+		 * (another overlay folding it in), so its weight and edges aren't
+		 * split between two ids. Folding this overlay merges the two.
+		 */
+		@Override
+		protected ChatWord observeWord(CharSequence text, int start, int end) {
+			int id = localDictionary.lookup(text, start, end);
+			if (id >= 0) {
+				return localWords.get(id);
+			}
+			lockBase();
+			try {
+				id = base.dictionary.lookup(text, start, end);
+				if (id >= 0) {
+					return base.word(id);
+				}
+			} finally {
+				unlockBase();
+			}
+			id = localDictionary.intern(text, start, end);
+			localWords.add(new ChatWord(LOCAL_ID_BASE + id, valueWord(end - start)));
+			return localWords.get(id);
+		}
+
+		/**
+		 * Overlays use the base's threads rather than starting their own.
+		 */
+		@Override
+		protected ExecutorService workers() {
+			return base.workers();
+		}
+
+		@Override
+		protected int transpositionEntries() {
+			return OVERLAY_TRANSPOSITION_ENTRIES;
+		}
+
+		@Override
+		protected int monteCarloNodes() {
+			return OVERLAY_MCTS_NODES;
+		}
+
+		@Override
+		protected ChatWord word(int id) {
+			if (id >= LOCAL_ID_BASE) {
+				return localWords.get(id - LOCAL_ID_BASE);
+			}
+			lockBase();
+			try {
+				return base.word(id);
+			} finally {
+				unlockBase();
+			}
+		}
+
+		@Override
+		protected void appendText(int id, StringBuilder sb) {
+			if (id >= LOCAL_ID_BASE) {
+				localDictionary.appendText(id - LOCAL_ID_BASE, sb);
+				return;
+			}
+			lockBase();
+			try {
+				base.appendText(id, sb);
+			} finally {
+				unlockBase();
+			}
+		}
+
+		@Override
+		protected void learnEdge(ChatWord word, ChatWord next, int times) {
+			countDelta(edgeDeltas, word, next.getId(), times);
+			if (next != ENDWORD) { // as in ChatWord.addDescendent
+				countDelta(antecedentDeltas, next, word.getId(), times);
+			}
+		}
+
+		@Override
+		protected void learnPunctuation(ChatWord word, char c, int times) {
+			countDelta(punctuationDeltas, word, c, times);
+		}
+
+		/** Helper to count more sightings of an id after a word in a set of deltas. */
+		private static void countDelta(Map<ChatWord, WordBuffer> deltas,
+				ChatWord word, int id, int times) {
+			WordBuffer delta = deltas.get(word);
+			if (delta == null) {
+				delta = new WordBuffer();
+				deltas.put(word, delta);
+			}
+			int i = delta.indexOf(id);
+			if (i < 0) {
+				delta.add(id, times);
+			} else {
+				delta.addCount(i, times);
+			}
+		}
+
+		@Override
+		protected void successors(ChatWord word, WordBuffer out) {
+			lockBase();
+			try {
+				super.successors(word, out);
+			} finally {
+				unlockBase();
+			}
+			merge(edgeDeltas.get(word), out);
+		}
+
+		@Override
+		protected void predecessors(ChatWord word, WordBuffer out) {
+			lockBase();
+			try {
+				super.predecessors(word, out);
+			} finally {
+				unlockBase();
+			}
+			merge(antecedentDeltas.get(word), out);
+		}
+
+		@Override
+		protected int pickPunctuation(ChatWord word) {
+			lockBase();
+			try {
+				return super.pickPunctuation(word);
+			} finally {
+				unlockBase();
+			}
+		}
+
+		/** Helper to add the deltas for a word to the base's counts. */
+		private static void merge(WordBuffer delta, WordBuffer out) {
+			if (delta == null) {
+				return;
+			}
+			for (int i = 0; i < delta.size(); i++) {
+				int at = out.indexOf(delta.getId(i));
+				if (at < 0) {
+					out.add(delta.getId(i), delta.getCount(i));
+				} else {
+					out.addCount(at, delta.getCount(i));
+				}
+			}
+			out.sortByCount();
+		}
+
+		@Override
+		protected void decayInherited() {
+			baseScale -= baseScale * base.decayRate;
+		}
+
+		@Override
+		protected double inheritedWeight(ChatWord word) {
+			lockBase();
+			try {
+				return base.weight(word) * baseScale;
+			} finally {
+				unlockBase();
+			}
+		}
+
+		@Override
+		protected double topWeight() {
+			lockBase();
+			try {
+				return Math.max(super.topWeight(), base.topWeight() * baseScale);
+			} finally {
+				unlockBase();
+			}
+		}
+
+		/**
+		 * Lists the words by weight, merging the overlay's own weights with
+		 * the base's decayed ones. Words the overlay has weighed itself
+		 * are skipped in the base's list.
+		 */
+		@Override
+		protected Iterator<ChatWord> wordsByWeight() {
+			final Iterator<ChatWord> own = super.wordsByWeight();
+			final Iterator<ChatWord> inherited = base.wordsByWeight();
+			return new Iterator<ChatWord>() {
+				private ChatWord nextOwn;
+				private ChatWord nextInherited;
+
+				@Override
+				public boolean hasNext() {
+					if (nextOwn == null && own.hasNext()) {
+						nextOwn = own.next();
+					}
+					while (nextInherited == null && inherited.hasNext()) {
+						ChatWord word = inherited.next();
+						if (ownWeight(word) == null) {
+							nextInherited = word;
+						}
+					}
+					return nextOwn != null || nextInherited != null;
+				}
+
+				@Override
+				public ChatWord next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					ChatWord word;
+					if (nextInherited == null || (nextOwn != null &&
+							ownWeight(nextOwn) >= inheritedWeight(nextInherited))) {
+						word = nextOwn;
+						nextOwn = null;
+					} else {
+						word = nextInherited;
+						nextInherited = null;
+					}
+					return word;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		/**
+		 * Helper for ChatbotBrain.fold. Replays what this overlay has
+		 * learned into the base, then closes the overlay.
+		 */
+		private void foldInto(ChatbotBrain target) {
+			if (target != base) {
+				throw new IllegalArgumentException("Overlay belongs to another brain");
+			}
+			checkOpen();
+			for (Map.Entry<ChatWord, WordBuffer> edges : edgeDeltas.entrySet()) {
+				ChatWord word = rebase(edges.getKey());
+				WordBuffer delta = edges.getValue();
+				for (int i = 0; i < delta.size(); i++) {
+					base.learnEdge(word, rebase(word(delta.getId(i))), delta.getCount(i));
+				}
+			}
+			for (Map.Entry<ChatWord, WordBuffer> puncs : punctuationDeltas.entrySet()) {
+				ChatWord word = rebase(puncs.getKey());
+				WordBuffer delta = puncs.getValue();
+				for (int i = 0; i < delta.size(); i++) {
+					base.learnPunctuation(word, (char) delta.getId(i), delta.getCount(i));
+				}
+			}
+			folded = true;
+			edgeDeltas = null;
+			antecedentDeltas = null;
+			punctuationDeltas = null;
+		}
+
+		/** Helper to find the base's ChatWord for a word, adding it if new. */
+		private ChatWord rebase(ChatWord word) {
+			if (word.getId() < LOCAL_ID_BASE) {
+				return word;
+			}
+			String text = localDictionary.getText(word.getId() - LOCAL_ID_BASE);
+			return base.observeWord(text, 0, text.length());
+		}
+
+		/** Helper to take the base's read lock, if it has one. */
+		private void lockBase() {
+			if (baseLock != null) {
+				baseLock.lock();
+			}
+		}
+
+		/** Helper to let go of the base's read lock. */
+		private void unlockBase() {
+			if (baseLock != null) {
+				baseLock.unlock();
+			}
+		}
+
+		/** Helper to refuse to go on once folded. */
+		private void checkOpen() {
+			if (folded) {
+				throw new IllegalStateException("Overlay has been folded into its brain");
+			}
+		}
+	}
+
+	/**
+	 * LeaderBrain is a ChatbotBrain that other brains can copy as it
+	 * learns. Everything it learns is also written to a DeltaLog as
+	 * compact records (new words, edge and punctuation counts, word
+	 * sightings, decay ticks), and serve() streams the log over TCP to
+	 * any number of FollowerBrains, in batches sent at most BATCH_MILLIS
+	 * after the oldest delta in them was learned. A follower connecting
+	 * afresh is first sent a snapshot of the whole brain in the same
+	 * records, along with the log offset it was taken at, and carries on
+	 * from that offset.
+	 * The leader learns through digestSentence and decay, which are
+	 * synchronized so a snapshot never catches half a sentence.
+	 */
+	static class LeaderBrain extends ChatbotBrain {
+		/** Most milliseconds a delta waits to be sent with others. */
+		public static final long BATCH_MILLIS = 20;
+		/** Bytes of deltas that are sent without waiting for more. */
+		public static final int BATCH_BYTES = 1 << 16;
+		/** Bytes of deltas kept for followers that are behind. */
+		public static final int LOG_RETAIN = 1 << 22;
+
+		/** Frame holding a snapshot. */
+		public static final byte SNAPSHOT_FRAME = 1;
+		/** Frame holding a batch of deltas. */
+		public static final byte BATCH_FRAME = 2;
+
+		/** What has been learned, for the followers. */
+		private DeltaLog log;
+
+		/** Socket followers connect to, once serving. */
+		private ServerSocket server;
+
+		/** Number of followers connected. */
+		private int followers;
+
+		/**
+		 * Gets the leader started with an empty brain.
+		 */
+		public LeaderBrain() {
+			log = new DeltaLog(LOG_RETAIN);
+			followers = 0;
+		}
+
+		@Override
+		public synchronized void digestSentence(String sentence) {
+			super.digestSentence(sentence);
+			log.commit();
+		}
+
+		@Override
+		public synchronized void decay() {
+			log.decay();
+			super.decay();
+			log.commit();
+		}
+
+		/**
+		 * Folds overlays in like any brain, holding the lock so a snapshot
+		 * can't see half of it, and commits what they learned so the
+		 * followers get it right away.
+		 */
+		@Override
+		public synchronized void fold(Collection<BrainOverlay> overlays) {
+			super.fold(overlays);
+			log.commit();
+		}
+
+		@Override
+		protected void beginSentence() {
+			log.sentence();
+			super.beginSentence();
+		}
+
+		@Override
+		protected ChatWord observeWord(CharSequence text, int start, int end) {
+			int known = getVocabularySize();
+			ChatWord word = super.observeWord(text, start, end);
+			if (word.getId() >= known) {
+				log.word(text, start, end);
+			}
+			return word;
+		}
+
+		@Override
+		protected void sight(ChatWord word) {
+			log.sighting(word.getId());
+			super.sight(word);
+		}
+
+		@Override
+		protected void learnEdge(ChatWord word, ChatWord next, int times) {
+			log.edge(word.getId(), next.getId(), times);
+			super.learnEdge(word, next, times);
+		}
+
+		@Override
+		protected void learnPunctuation(ChatWord word, char c, int times) {
+			log.punctuation(word.getId(), c, times);
+			super.learnPunctuation(word, c, times);
+		}
+
+		/**
+		 * Gets the offset of the end of the log, that is, of everything
+		 * learned so far.
+		 */
+		public long getLogOffset() {
+			return log.getEnd();
+		}
+
+		/**
+		 * Gets the port followers connect to, once serving.
+		 */
+		public int getPort() {
+			return server.getLocalPort();
+		}
+
+		/**
+		 * Gets the number of followers connected.
+		 */
+		public synchronized int getFollowers() {
+			return followers;
+		}
+
+		/**
+		 * Starts accepting followers on an address, each fed by a thread
+		 * of its own.
+		 */
+		public void serve(InetSocketAddress address) throws IOException {
+			server = new ServerSocket();
+			server.bind(address);
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							final Socket socket = server.accept();
+							Thread feeder = new Thread(new Runnable() {
+								@Override
+								public void run() {
+									feed(socket);
+								}
+							}, "LeaderBrain feeder");
+							feeder.setDaemon(true);
+							feeder.start();
+						}
+					} catch (IOException ioe) {
+						// closed
+					}
+				}
+			}, "LeaderBrain acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		/**
+		 * Stops accepting followers.
+		 */
+		public void close() throws IOException {
+			if (server != null) {
+				server.close();
+			}
+		}
+
+		/**
+		 * Helper to feed one follower. The follower says which offset it
+		 * has; if the log doesn't hold it any more (or it has nothing) it
+		 * gets a snapshot first. Then batches follow for as long as the
+		 * follower keeps up. One too far behind for the log is dropped,
+		 * and has to start again with a fresh brain.
+		 */
+		private void feed(Socket socket) {
+			synchronized (this) {
+				followers++;
+			}
+			try {
+				socket.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(socket.getOutputStream()));
+				long offset = in.readLong();
+				if (offset < 0 || offset > log.getEnd() || offset < log.getStart()) {
+					DeltaLog snapshot = new DeltaLog(Integer.MAX_VALUE);
+					offset = snapshot(snapshot);
+					byte[] records = snapshot.read(0, Integer.MAX_VALUE);
+					writeFrame(out, SNAPSHOT_FRAME, offset, System.currentTimeMillis(), records);
+				}
+				while (true) {
+					log.await(offset, BATCH_BYTES, BATCH_MILLIS);
+					long learned = log.getCommitTime(offset);
+					byte[] records = log.read(offset, BATCH_BYTES);
+					if (records == null) {
+						break; // fell behind the log
+					}
+					offset += records.length;
+					writeFrame(out, BATCH_FRAME, offset, learned, records);
+				}
+			} catch (IOException ioe) {
+				// follower went away
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} finally {
+				synchronized (this) {
+					followers--;
+				}
+				try {
+					socket.close();
+				} catch (IOException ioe) {
+					// already closed
+				}
+			}
+		}
+
+		/**
+		 * Helper to write a frame: its kind, the log offset a follower
+		 * is at once it has applied it, when its oldest record was
+		 * learned, and the records.
+		 */
+		private static void writeFrame(DataOutputStream out, byte kind, long offset,
+				long learned, byte[] records) throws IOException {
+			out.writeByte(kind);
+			out.writeLong(offset);
+			out.writeLong(learned);
+			out.writeInt(records.length);
+			out.write(records);
+			out.flush();
+		}
+
+		/**
+		 * Writes the whole brain to a log, as the records that would
+		 * build it: every word, every edge and punctuation count, the
+		 * topic weights and word counts. The conversation window isn't
+		 * copied; a follower's fills up again with the next sentences.
+		 * Returns the offset of the leader's log the snapshot matches.
+		 */
+		private synchronized long snapshot(DeltaLog out) {
+			StringBuilder text = new StringBuilder();
+			int size = getVocabularySize();
+			for (int id = ChatDictionary.START_ID + 1; id < size; id++) {
+				text.setLength(0);
+				appendText(id, text);
+				out.word(text, 0, text.length());
+			}
+			WordBuffer successors = new WordBuffer();
+			for (int id = ChatDictionary.START_ID; id < size; id++) {
+				ChatWord word = word(id);
+				successors(word, successors);
+				for (int i = 0; i < successors.size(); i++) {
+					out.edge(id, successors.getId(i), successors.getCount(i));
+				}
+				for (int i = 0; i < word.getPunctuationKinds(); i++) {
+					out.punctuation(id, getPunctuationCharacter(word.getPunctuationSymbol(i)),
+							word.getPunctuationFrequency(i));
+				}
+			}
+			Iterator<ChatWord> byWeight = wordsByWeight();
+			while (byWeight.hasNext()) {
+				ChatWord word = byWeight.next();
+				out.weight(word.getId(), weight(word));
+			}
+			out.counts(getWordCount(), getWordValues());
+			out.commit();
+			return log.getEnd();
+		}
+	}
+
+	/**
+	 * FollowerBrain is a read-only copy of a LeaderBrain, kept up to date
+	 * over TCP. It learns only what the leader sends, applying each batch
+	 * whole while no sentence is being built, and otherwise answers like
+	 * any other brain. Overlays can be opened over it for many
+	 * conversations at once; they hold its read lock around each read,
+	 * and each batch is applied under the write lock, so a batch only
+	 * waits for reads in progress. Nothing can be folded into a
+	 * follower.
+	 */
+	static class FollowerBrain extends ChatbotBrain {
+		/** Offset of the leader's log this brain is up to, or -1. */
+		private long offset;
+
+		/**
+		 * Milliseconds from the leader learning the oldest delta of the
+		 * last batch to this brain having applied it, or -1.
+		 */
+		private long lag;
+
+		/** Largest lag seen. */
+		private long maxLag;
+
+		/** Sum of the lags of all batches, for the mean. */
+		private long totalLag;
+
+		/** Number of batches applied, not counting a snapshot. */
+		private long batches;
+
+		/** Whether still connected to the leader. */
+		private volatile boolean following;
+
+		/** Connection to the leader. */
+		private Socket socket;
+
+		/** Where apply is reading in the records. */
+		private int pos;
+
+		/** Read by overlays, written by apply. */
+		private ReentrantReadWriteLock replicaLock;
+
+		/**
+		 * Gets the follower started with an empty brain.
+		 */
+		public FollowerBrain() {
+			offset = -1;
+			lag = -1;
+			maxLag = -1;
+			totalLag = 0;
+			batches = 0;
+			following = false;
+			replicaLock = new ReentrantReadWriteLock();
+		}
+
+		/**
+		 * Learning only comes from the leader, so this does nothing.
+		 */
+		@Override
+		public void digestSentence(String sentence) {
+		}
+
+		/**
+		 * Decay only comes from the leader, so this does nothing.
+		 */
+		@Override
+		public void decay() {
+		}
+
+		/**
+		 * Learning only comes from the leader, so overlays can't be
+		 * folded into a follower.
+		 */
+		@Override
+		public void fold(Collection<BrainOverlay> overlays) {
+			throw new UnsupportedOperationException("A follower only learns from its leader");
+		}
+
+		@Override
+		protected Lock readLock() {
+			return replicaLock.readLock();
+		}
+
+		@Override
+		public synchronized String buildSentence() {
+			return super.buildSentence();
+		}
+
+		@Override
+		public synchronized String streamSentence(PrintStream out) {
+			return super.streamSentence(out);
+		}
+
+		/**
+		 * Connects to a leader and starts following it, on a thread of
+		 * its own.
+		 */
+		public void follow(InetSocketAddress address) throws IOException {
+			socket = new Socket();
+			socket.connect(address);
+			socket.setTcpNoDelay(true);
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeLong(getOffset());
+			out.flush();
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			following = true;
+			Thread receiver = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					receive(in);
+				}
+			}, "FollowerBrain receiver");
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+
+		/**
+		 * Stops following the leader.
+		 */
+		public void close() throws IOException {
+			if (socket != null) {
+				socket.close();
+			}
+		}
+
+		/**
+		 * Whether still connected to the leader.
+		 */
+		public boolean isFollowing() {
+			return following;
+		}
+
+		/**
+		 * Gets the offset of the leader's log this brain is up to.
+		 */
+		public synchronized long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Gets the milliseconds between the leader learning the oldest
+		 * delta of the last batch and this brain having it.
+		 */
+		public synchronized long getLag() {
+			return lag;
+		}
+
+		/**
+		 * Gets the largest lag seen.
+		 */
+		public synchronized long getMaxLag() {
+			return maxLag;
+		}
+
+		/**
+		 * Gets the mean lag over all batches, or -1 if none were applied.
+		 */
+		public synchronized double getMeanLag() {
+			return (batches > 0) ? totalLag / (double) batches : -1.0;
+		}
+
+		/**
+		 * Gets the number of batches applied.
+		 */
+		public synchronized long getBatches() {
+			return batches;
+		}
+
+		/**
+		 * Helper to read frames from the leader until it goes away.
+		 */
+		private void receive(DataInputStream in) {
+			byte[] records = new byte[LeaderBrain.BATCH_BYTES];
+			try {
+				while (true) {
+					byte kind = in.readByte();
+					long end = in.readLong();
+					long learned = in.readLong();
+					int length = in.readInt();
+					if (length > records.length) {
+						records = new byte[length];
+					}
+					in.readFully(records, 0, length);
+					// Overlays read under the read lock, and this brain's
+					// own searches under its monitor; apply shuts out both.
+					replicaLock.writeLock().lock();
+					try {
+						apply(kind, end, learned, records, length);
+					} finally {
+						replicaLock.writeLock().unlock();
+					}
+				}
+			} catch (IOException ioe) {
+				// leader went away
+			} finally {
+				following = false;
+			}
+		}
+
+		/**
+		 * Helper to apply a frame of records, checking it follows on from
+		 * what this brain already has.
+		 */
+		private synchronized void apply(byte kind, long end, long learned,
+				byte[] records, int length) {
+			if (kind == LeaderBrain.SNAPSHOT_FRAME ?
+					offset >= 0 : offset != end - length) {
+				throw new IllegalStateException("Replica out of step with its leader");
+			}
+			pos = 0;
+			while (pos < length) {
+				applyRecord(records);
+			}
+			offset = end;
+			if (kind == LeaderBrain.BATCH_FRAME) {
+				batches++;
+				lag = System.currentTimeMillis() - learned;
+				maxLag = Math.max(maxLag, lag);
+				totalLag += lag;
+			}
+		}
+
+		/**
+		 * Helper to apply the record at pos, moving pos past it.
+		 */
+		private void applyRecord(byte[] records) {
+			byte kind = records[pos++];
+			switch (kind) {
+			case DeltaLog.WORD: {
+				int length = readVarint(records);
+				String text = new String(records, pos, length, DeltaLog.CHARSET);
+				pos += length;
+				int id = getVocabularySize();
+				if (observeWord(text, 0, length).getId() != id) {
+					throw new IllegalStateException("Replica out of step with its leader");
+				}
+				break;
+			}
+			case DeltaLog.SENTENCE:
+				beginSentence();
+				break;
+			case DeltaLog.SIGHTING:
+				sight(word(readVarint(records)));
+				break;
+			case DeltaLog.EDGE: {
+				ChatWord word = word(readVarint(records));
+				ChatWord next = word(readVarint(records));
+				word.addDescendent(next, readVarint(records));
+				break;
+			}
+			case DeltaLog.PUNCTUATION: {
+				ChatWord word = word(readVarint(records));
+				char c = (char) readVarint(records);
+				learnPunctuation(word, c, readVarint(records));
+				break;
+			}
+			case DeltaLog.DECAY:
+				super.decay();
+				break;
+			case DeltaLog.WEIGHT: {
+				ChatWord word = word(readVarint(records));
+				restoreWeight(word, Double.longBitsToDouble(readLong(records)));
+				break;
+			}
+			case DeltaLog.COUNTS: {
+				int wordCount = readVarint(records);
+				restoreCounts(wordCount, Double.longBitsToDouble(readLong(records)));
+				break;
+			}
+			default:
+				throw new IllegalStateException("Unknown record " + kind);
+			}
+		}
+
+		/** Helper to read a varint at pos. */
+		private int readVarint(byte[] records) {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = records[pos++];
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			return value;
+		}
+
+		/** Helper to read eight bytes at pos, high byte first. */
+		private long readLong(byte[] records) {
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (records[pos++] & 0xFF);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Useful helper class to construct sentences.
+	 */
+	static class ChatSentence implements Cloneable {
+		/**
+		 * List of words.
+		 */
+		private List<Object> words;
+		/**
+		 * Quick search construct to have O(ln) lookup times.
+		 */
+		private Set<Object> contains;
+
+		/**
+		 * Starts to build a sentence with a single word as anchor
+		 */
+		public ChatSentence(ChatWord anchor) {
+			if (anchor == null) {
+				throw new IllegalArgumentException("Anchor must not be null");
+			}
+			words = new ArrayList<Object>();
+			contains = new HashSet<Object>();
+			words.add(anchor);
+			contains.add(anchor);
+		}
+
+		/** 
+		 * Starts a sentence using an existing ChatSentence. Also used for
+		 * cloning.
 		 */
 		public ChatSentence(ChatSentence src) {
 			words = new ArrayList<Object>();
@@ -582,328 +3192,1390 @@ public class LearningChatbot {
 		}
 
 		/**
-		 * Adds a word to a sentence
+		 * Adds a word to a sentence
+		 */
+		public ChatSentence addWord(ChatWord word) {
+			if (word == null) {
+				throw new IllegalArgumentException("Can't add null word");
+			}
+			words.add(word);
+			contains.add(word);
+			return this;
+		}
+
+		/**
+		 * Adds a character to a sentence.
+		 */
+		public ChatSentence addCharacter(Character punc) {
+			if (punc == null) {
+				throw new IllegalArgumentException("Can't add null punctuation");
+			}
+			words.add(punc);
+			contains.add(punc);
+			return this;
+		}
+
+		/**
+		 * Replace a sentence with some other sentence.
+		 * Useful to preserve references.
+		 */
+		public ChatSentence replaceSentence(ChatSentence src) {
+			words.clear();
+			contains.clear();
+			appendSentence(src);
+			return this;
+		}
+
+		public ChatSentence appendSentence(ChatSentence src) {
+			words.addAll(src.getWords());
+			contains.addAll(src.getWords());
+			return this;
+		}
+
+		/**
+		 * Get last word of the sentence.
+		 */
+		public ChatWord getLastWord() {
+			for (int i=words.size()-1; i>=0; i--) {
+				if (words.get(i) instanceof ChatWord) {
+					return (ChatWord) words.get(i);
+				}
+			}
+			throw new IllegalStateException("No ChatWords found!");
+		}
+
+		/**
+		 * Checks if the sentence has a word
+		 */
+		public boolean hasWord(ChatWord word) {
+			return contains.contains(word);
+		}
+
+		/**
+		 * Counts the number of words in a sentence.
+		 */
+		public int countWords() {
+			int cnt = 0;
+			for (Object o : words) {
+				if (o instanceof ChatWord) {
+					cnt++;
+				}
+			}
+			return cnt;
+		}
+
+		/**
+		 * Gets all the words of the sentence
+		 */
+		private List<Object> getWords() {
+			return words;
+		}
+
+		/**
+		 * Returns the sentence as a string, using the brain to recover
+		 * the text of each word.
+		 */
+		public String render(ChatbotBrain brain) {
+			StringBuilder sb = new StringBuilder();
+			for (Object o : words) {
+				if (o instanceof ChatWord) {
+					ChatWord cw = (ChatWord) o;
+					sb.append(" ");
+					brain.appendText(cw.getId(), sb);
+				} else {
+					sb.append(o);
+				}
+			}
+			return sb.toString().trim();
+		}
+
+		/**
+		 * Returns the sentence as a string of word ids, for debugging.
+		 */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (Object o : words) {
+				if (o instanceof ChatWord) {
+					ChatWord cw = (ChatWord) o;
+					sb.append(" #");
+					sb.append( cw.getId() );
+				} else {
+					sb.append(o);
+				}
+			}
+			return sb.toString().trim();
+		}
+
+		/**
+		 * Clones this sentence.
+		 */
+		@Override
+		public Object clone() {
+			return new ChatSentence(this);
+		}
+	}
+
+	/**
+	 * ChatWord allows the creation of words that track how they are
+	 * connected to other words in a forward fashion. In this way it is
+	 * possible to construct arbitrary length sentences involving a set
+	 * of keywords harvested from statements. Trust me, it's possible.
+	 */
+	static class ChatWord {
+		/** The dictionary id of the word. */
+		private int id;
+		/** The value of the word, worked out once from its length. */
+		private double value;
+		/**
+		 * Punctuation observed after this word, as a tiny histogram of
+		 * (count &lt;&lt; 8 | symbol) entries sorted by descending count.
+		 * Null until the first punctuation is seen, since most words
+		 * never have any.
+		 */
+		private int[] punctuation;
+		/** Punctionation observation count */
+		private int punctuationCount;
+		
+		/** Collection of ChatWords observed after this word */
+		private NavigableMap<Integer, Collection<ChatWord>> firstOrder;
+		/** Lookup linking observed words to where they are in ordering */
+		private Map<ChatWord, Integer> firstOrderLookup;
+		/** First order antecedent word count */
+		private Integer firstOrderCount;
+
+		/** Collection of ChatWords observed before this word */
+		private NavigableMap<Integer, Collection<ChatWord>> antecedents;
+		/** Lookup linking preceding words to where they are in ordering */
+		private Map<ChatWord, Integer> antecedentsLookup;
+		/** Preceding word count */
+		private int antecedentCount;
+
+		/** Highest count a single punctuation histogram entry can hold */
+		private static final int MAX_PUNCTUATION_FREQUENCY = (1 << 23) - 1;
+
+		/**
+		 * Creates a new ChatWord that is aware of punctuation that
+		 * follows it, and also ChatWords that follow it.
+		 */
+		public ChatWord(int id, double value){
+			this.id = id;
+			this.value = value;
+
+			this.firstOrder = new TreeMap<Integer, Collection<ChatWord>>();
+			this.firstOrderLookup = new HashMap<ChatWord, Integer>();
+			this.firstOrderCount = 0;
+
+			this.antecedents = new TreeMap<Integer, Collection<ChatWord>>();
+			this.antecedentsLookup = new HashMap<ChatWord, Integer>();
+			this.antecedentCount = 0;
+
+			this.punctuation = null;
+			this.punctuationCount = 0;
+		}
+
+		/**
+		 * Including this for now, but I don't like it -- it returns all
+		 * descendents wholesale. I think what would be better is some
+		 * function that returns a descendent based on some characteristic.
+		 */
+		protected NavigableMap<Integer, Collection<ChatWord>> getDescendents() {
+			return firstOrder;
+		}
+
+		/**
+		 * Returns how many descendents this word has seen.
+		 */
+		protected int getDescendentCount() {
+			return firstOrderCount;
+		}
+
+		/**
+		 * Gets the lookup map for descendents
+		 */
+		protected Map<ChatWord, Integer> getDescendentsLookup() {
+			return firstOrderLookup;
+		}
+
+		/**
+		 * Returns the words seen directly before this one, keyed by how
+		 * often they were seen there. This is the reverse of
+		 * getDescendents, kept up to date by addDescendent.
+		 */
+		protected NavigableMap<Integer, Collection<ChatWord>> getAntecedents() {
+			return antecedents;
+		}
+
+		/**
+		 * Returns how many times a word has been seen before this one.
+		 */
+		protected int getAntecedentCount() {
+			return antecedentCount;
+		}
+
+		/**
+		 * Gets the lookup map for antecedents
+		 */
+		protected Map<ChatWord, Integer> getAntecedentsLookup() {
+			return antecedentsLookup;
+		}
+
+		/** As conversation progresses, word orderings will be encountered.
+		 * The descendent style of "learning" basically weights how often
+		 * words are encountered together, and is strongly biased towards
+		 * encountered ordering.
+		 * Thus, when constructing a "reply", the bot can use what it
+		 * has "learned" about precedence and ordering to construct
+		 * phrases that may or may not make sense. It's a grand adventure!
+		 * This function allows recording a new occurence of a word after 
+		 * this ChatWord. For word recording purposes, it is recommended
+		 * that all but [-a-zA-Z0-9] be removed. This isn't required, but
+		 * as we're discussing speech and not high forms of communication it
+		 * should be sufficient.
+		 * The next word learns of this word as its antecedent at the same
+		 * time, so the graph can be walked in either direction, except
+		 * for the ENDWORD.
+		 */
+		public void addDescendent(ChatWord next) {
+			addDescendent(next, 1);
+		}
+
+		/**
+		 * Records a number of occurrences of a word after this ChatWord
+		 * at once.
+		 */
+		public void addDescendent(ChatWord next, int times) {
+			if(next != null){
+				firstOrderCount += times;
+				countOccurrence(firstOrder, firstOrderLookup, next, times);
+				// The ENDWORD is shared by every brain, so it keeps no
+				// antecedents; nothing walks backward from it anyway.
+				if (next != ENDWORD) {
+					next.antecedentCount += times;
+					countOccurrence(next.antecedents, next.antecedentsLookup, this, times);
+				}
+			}
+		}
+
+		/**
+		 * Helper to count more sightings of a word in an ordering and
+		 * its lookup, moving it up to its new count.
+		 */
+		private static void countOccurrence(NavigableMap<Integer, Collection<ChatWord>> order,
+				Map<ChatWord, Integer> lookup, ChatWord word, int times) {
+			int nextCount = times;
+			Collection<ChatWord> obs = null;
+			// If we've already seen this word, clean up prior membership.
+			if(lookup.containsKey(word)){
+				nextCount = lookup.remove(word);
+				obs = order.get(nextCount);
+				// Remove from prior obs count order
+				obs.remove(word);
+				nextCount += times;
+			}
+			obs = order.get(nextCount);
+			if (obs == null) { // we don't have this order yet
+				obs = new HashSet<ChatWord>();
+				order.put(nextCount, obs);
+			}
+			lookup.put(word, nextCount);
+			obs.add(word);
+		}
+
+		/**
+		 * Some words have punctuation after them more often than not. 
+		 * This allows the ChatBrain to record occurrences of punctuation
+		 * after a word, by its symbol in the brain's PunctuationTable.
+		 * The histogram is kept sorted by bubbling an entry forward past
+		 * any entries it now outnumbers.
+		 */
+		public void addPunctuation(int symbol) {
+			addPunctuation(symbol, 1);
+		}
+
+		/**
+		 * Records a number of occurrences of punctuation after this
+		 * ChatWord at once.
+		 */
+		public void addPunctuation(int symbol, int times) {
+			punctuationCount += times;
+			int i = 0;
+			int kinds = getPunctuationKinds();
+			while (i < kinds && (punctuation[i] & 0xFF) != symbol) {
+				i++;
+			}
+			if (i == kinds) { // we don't have this punctuation yet
+				punctuation = (punctuation == null) ? new int[1] :
+						Arrays.copyOf(punctuation, kinds + 1);
+				punctuation[i] = symbol;
+			}
+			int frequency = (int) Math.min(MAX_PUNCTUATION_FREQUENCY,
+					(long) (punctuation[i] >>> 8) + times);
+			punctuation[i] = (frequency << 8) | symbol;
+			int entry = punctuation[i];
+			while (i > 0 && (punctuation[i - 1] >>> 8) < (entry >>> 8)) {
+				punctuation[i] = punctuation[i - 1];
+				i--;
+			}
+			punctuation[i] = entry;
+		}
+
+		/**
+		 * Gets how many distinct punctuation symbols follow this word.
+		 */
+		protected int getPunctuationKinds() {
+			return (punctuation == null) ? 0 : punctuation.length;
+		}
+
+		/**
+		 * Gets the symbol of the i'th most frequent punctuation.
+		 */
+		protected int getPunctuationSymbol(int i) {
+			return punctuation[i] & 0xFF;
+		}
+
+		/**
+		 * Gets how often the i'th most frequent punctuation was seen.
+		 */
+		protected int getPunctuationFrequency(int i) {
+			return punctuation[i] >>> 8;
+		}
+
+		/**
+		 * Gets count of punctuation encountered.
+		 */
+		protected int getPunctuationCount() {
+			return punctuationCount;
+		}
+
+		/**
+		 * Gets the dictionary id backing this ChatWord. The text of the
+		 * word is only recovered from the dictionary when rendering.
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * Gets the value of this word, as precomputed by the brain.
+		 */
+		public double getValue() {
+			return value;
+		}
+
+		/**
+		 * ChatWords are equivalent with the id they wrap.
+		 */
+		@Override
+		public int hashCode() {
+			return id;
+		}
+
+		/**
+		 * ChatWord equality is that ChatWords that wrap the same id
+		 * are equal. Ids are only unique within a single dictionary.
+		 */
+		@Override
+		public boolean equals(Object o){
+			if (o == this) {
+				return true;
+			}
+			if (o instanceof ChatWord) {
+				return ((ChatWord)o).getId() == this.getId();
+			}
+
+			return false;
+		}
+
+		/**
+		 * Returns this ChatWord as a String.
+		 */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("ChatWord[#");
+			sb.append(id);
+			sb.append("]desc{");
+			for (Integer key : firstOrder.keySet() ) {
+				Collection<ChatWord> value = firstOrder.get(key);
+				sb.append(key);
+				sb.append(":[");
+				for (ChatWord cw : value) {
+					sb.append("#");
+					sb.append(cw.getId());
+					sb.append(",");
+				}
+				sb.append("],");
+			}
+			sb.append("}punc{");
+			for (int i = 0; i < getPunctuationKinds(); i++) {
+				sb.append(getPunctuationFrequency(i));
+				sb.append(":#");
+				sb.append(getPunctuationSymbol(i));
+				sb.append(",");
+			}
+			sb.append("}");
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * ConversationWindow remembers the words of the last few sentences in
+	 * a fixed ring of word ids, along with each word's value. Starting a
+	 * sentence reuses the oldest slot, taking its words back out. Every
+	 * distinct word in the window has a score, the sum of its values
+	 * across the window, and the distinct words are kept ranked by score
+	 * as words come and go. Reading the top K words is then O(K), and
+	 * nothing is allocated after construction.
+	 */
+	static class ConversationWindow {
+		/** Word ids, one row of wordsPerSentence per sentence slot. */
+		private int[] words;
+		/** Value of each word in words. */
+		private double[] values;
+		/** Number of words held in each sentence slot. */
+		private int[] lengths;
+		/** Slot of the sentence being added to. */
+		private int current;
+		/** Most words kept per sentence. */
+		private int wordsPerSentence;
+
+		/** Distinct words in the window, best score first. */
+		private int[] ranked;
+		/** Score of each ranked word. */
+		private double[] scores;
+		/** How many times each ranked word appears in the window. */
+		private int[] occurrences;
+		/** Number of distinct words in the window. */
+		private int distinct;
+
+		/**
+		 * Creates an empty window over the given number of sentences,
+		 * each keeping up to wordsPerSentence words.
+		 */
+		public ConversationWindow(int sentences, int wordsPerSentence) {
+			this.wordsPerSentence = wordsPerSentence;
+			words = new int[sentences * wordsPerSentence];
+			values = new double[sentences * wordsPerSentence];
+			lengths = new int[sentences];
+			current = 0;
+			ranked = new int[sentences * wordsPerSentence];
+			scores = new double[sentences * wordsPerSentence];
+			occurrences = new int[sentences * wordsPerSentence];
+			distinct = 0;
+		}
+
+		/**
+		 * Starts a new sentence, forgetting the oldest one.
+		 */
+		public void beginSentence() {
+			current = (current + 1) % lengths.length;
+			int base = current * wordsPerSentence;
+			for (int i = 0; i < lengths[current]; i++) {
+				adjust(words[base + i], -values[base + i], -1);
+			}
+			lengths[current] = 0;
+		}
+
+		/**
+		 * Adds a word to the current sentence. Words past the end of a
+		 * sentence slot are not kept.
+		 */
+		public void addWord(int id, double value) {
+			if (lengths[current] == wordsPerSentence) {
+				return;
+			}
+			int slot = current * wordsPerSentence + lengths[current]++;
+			words[slot] = id;
+			values[slot] = value;
+			adjust(id, value, 1);
+		}
+
+		/**
+		 * Number of distinct words in the window.
+		 */
+		public int size() {
+			return distinct;
+		}
+
+		/**
+		 * Gets the id of the word at a rank, 0 being the best.
+		 */
+		public int getWord(int rank) {
+			return ranked[rank];
+		}
+
+		/**
+		 * Gets the score of the word at a rank.
+		 */
+		public double getScore(int rank) {
+			return scores[rank];
+		}
+
+		/**
+		 * Helper to change the score and occurrences of a word, keeping
+		 * the ranking sorted.
+		 */
+		private void adjust(int id, double delta, int count) {
+			int i = 0;
+			while (i < distinct && ranked[i] != id) {
+				i++;
+			}
+			if (i == distinct) {
+				ranked[i] = id;
+				scores[i] = 0.0;
+				occurrences[i] = 0;
+				distinct++;
+			}
+			occurrences[i] += count;
+			if (occurrences[i] == 0) { // gone from the window
+				distinct--;
+				System.arraycopy(ranked, i + 1, ranked, i, distinct - i);
+				System.arraycopy(scores, i + 1, scores, i, distinct - i);
+				System.arraycopy(occurrences, i + 1, occurrences, i, distinct - i);
+				return;
+			}
+			double score = scores[i] + delta;
+			int occurs = occurrences[i];
+			while (i > 0 && scores[i - 1] < score) {
+				move(i - 1, i--);
+			}
+			while (i < distinct - 1 && scores[i + 1] > score) {
+				move(i + 1, i++);
+			}
+			ranked[i] = id;
+			scores[i] = score;
+			occurrences[i] = occurs;
+		}
+
+		/** Helper to move a ranked entry. */
+		private void move(int from, int to) {
+			ranked[to] = ranked[from];
+			scores[to] = scores[from];
+			occurrences[to] = occurrences[from];
+		}
+	}
+
+	/**
+	 * TranspositionTable remembers the best suffix found below a node of
+	 * the depth first sentence search, so the next time the search reaches
+	 * an equivalent node it can reuse the answer instead of searching the
+	 * subtree again. It is a fixed size table where a new entry simply
+	 * replaces whatever shared its slot. Suffixes are stored as ints:
+	 * word ids as themselves and punctuation characters as their
+	 * complement, which is always negative. Clearing only bumps a
+	 * generation counter, so a table can be reused for every search.
+	 */
+	static class TranspositionTable {
+		/** Topics a key can tell apart, one bit each. */
+		public static final int TOPIC_BITS = 24;
+
+		/** Key of each entry. */
+		private long[] keys;
+		/** Generation each entry was stored in; older ones are empty. */
+		private int[] generations;
+		/** Value of each entry's suffix. */
+		private double[] values;
+		/** Number of tokens in each entry's suffix. */
+		private int[] lengths;
+		/** Suffix tokens, one row of stride per entry. */
+		private int[] tokens;
+		/** Most tokens a suffix can hold. */
+		private int stride;
+		/** Current generation. */
+		private int generation;
+
+		/**
+		 * Creates a table of entries (a power of two) holding suffixes of
+		 * up to stride tokens.
+		 */
+		public TranspositionTable(int entries, int stride) {
+			this.stride = stride;
+			keys = new long[entries];
+			generations = new int[entries];
+			values = new double[entries];
+			lengths = new int[entries];
+			tokens = new int[entries * stride];
+			generation = 1;
+		}
+
+		/**
+		 * Builds a key from a word id, the remaining depth and a bitmask
+		 * of the first TOPIC_BITS topic words already collected.
+		 */
+		public static long key(int id, int remaining, int collected) {
+			return ((long) id << 32) | ((long) (remaining & 0xFF) << TOPIC_BITS) |
+					(collected & ((1 << TOPIC_BITS) - 1));
+		}
+
+		/**
+		 * Forgets every entry.
+		 */
+		public void clear() {
+			generation++;
+		}
+
+		/**
+		 * Finds the entry for a key, or -1 if there is none.
+		 */
+		public int find(long key) {
+			int slot = slot(key);
+			return (generations[slot] == generation && keys[slot] == key) ? slot : -1;
+		}
+
+		/**
+		 * Remembers a suffix value and the suffix itself, the first
+		 * length of the given tokens. Suffixes too long to hold are not
+		 * remembered.
+		 */
+		public void store(long key, double value, int[] suffix, int length) {
+			if (length > stride) {
+				return;
+			}
+			int slot = slot(key);
+			keys[slot] = key;
+			generations[slot] = generation;
+			values[slot] = value;
+			lengths[slot] = length;
+			System.arraycopy(suffix, 0, tokens, slot * stride, length);
+		}
+
+		/**
+		 * Gets the suffix value of an entry.
+		 */
+		public double getValue(int entry) {
+			return values[entry];
+		}
+
+		/**
+		 * Gets the number of suffix tokens of an entry.
+		 */
+		public int getLength(int entry) {
+			return lengths[entry];
+		}
+
+		/**
+		 * Gets a suffix token of an entry.
+		 */
+		public int getToken(int entry, int i) {
+			return tokens[entry * stride + i];
+		}
+
+		/** Helper to find the slot of a key. */
+		private int slot(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h >>> 40) & (keys.length - 1);
+		}
+	}
+
+	/**
+	 * WordBuffer is a reusable list of word ids with a count for each,
+	 * used to take a snapshot of a word's connections without building
+	 * collections.
+	 */
+	static class WordBuffer {
+		/** The word ids. */
+		private int[] ids;
+		/** The count of each word. */
+		private int[] counts;
+		/** Number of words held. */
+		private int size;
+
+		/**
+		 * Creates an empty buffer.
+		 */
+		public WordBuffer() {
+			ids = new int[8];
+			counts = new int[8];
+			size = 0;
+		}
+
+		/**
+		 * Empties the buffer, keeping its room.
+		 */
+		public void clear() {
+			size = 0;
+		}
+
+		/**
+		 * Adds a word and its count.
+		 */
+		public void add(int id, int count) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				counts = Arrays.copyOf(counts, size * 2);
+			}
+			ids[size] = id;
+			counts[size++] = count;
+		}
+
+		/**
+		 * Number of words held.
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Gets the i'th word id.
+		 */
+		public int getId(int i) {
+			return ids[i];
+		}
+
+		/**
+		 * Gets the count of the i'th word.
+		 */
+		public int getCount(int i) {
+			return counts[i];
+		}
+
+		/**
+		 * Finds the index of a word id, or -1 if it isn't held.
+		 */
+		public int indexOf(int id) {
+			for (int i = 0; i < size; i++) {
+				if (ids[i] == id) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Adds to the count of the i'th word.
+		 */
+		public void addCount(int i, int count) {
+			counts[i] += count;
+		}
+
+		/**
+		 * Sorts the words by count, most frequent first. Words with the
+		 * same count keep their order. The buffers are short, so this is
+		 * an insertion sort.
+		 */
+		public void sortByCount() {
+			for (int i = 1; i < size; i++) {
+				int id = ids[i];
+				int count = counts[i];
+				int j = i - 1;
+				while (j >= 0 && counts[j] < count) {
+					ids[j + 1] = ids[j];
+					counts[j + 1] = counts[j];
+					j--;
+				}
+				ids[j + 1] = id;
+				counts[j + 1] = count;
+			}
+		}
+	}
+
+	/**
+	 * TopicSet is the small set of topic words a brain picks for each
+	 * reply. Membership is a scan over a handful of words, so checking a
+	 * word during the sentence search is cheap, and each word has a
+	 * stable index. The brain clears and refills one TopicSet every turn
+	 * instead of building a new set.
+	 */
+	static class TopicSet extends AbstractSet<ChatWord> {
+		/** The topic words, in the order they were added. */
+		private ChatWord[] words;
+		/** Number of topic words. */
+		private int count;
+
+		/**
+		 * Creates an empty set with room for capacity topics.
+		 */
+		public TopicSet(int capacity) {
+			words = new ChatWord[Math.max(1, capacity)];
+			count = 0;
+		}
+
+		/**
+		 * Gets the index of a topic word, or -1 if it is not a topic.
 		 */
-		public ChatSentence addWord(ChatWord word) {
-			if (word == null) {
-				throw new IllegalArgumentException("Can't add null word");
+		public int indexOf(Object o) {
+			for (int i = 0; i < count; i++) {
+				if (words[i].equals(o)) {
+					return i;
+				}
 			}
-			words.add(word);
-			contains.add(word);
-			return this;
+			return -1;
 		}
 
 		/**
-		 * Adds a character to a sentence.
+		 * Gets the topic word at an index.
 		 */
-		public ChatSentence addCharacter(Character punc) {
-			if (punc == null) {
-				throw new IllegalArgumentException("Can't add null punctuation");
+		public ChatWord get(int i) {
+			return words[i];
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return indexOf(o) >= 0;
+		}
+
+		@Override
+		public boolean add(ChatWord word) {
+			if (indexOf(word) >= 0) {
+				return false;
 			}
-			words.add(punc);
-			contains.add(punc);
-			return this;
+			if (count == words.length) {
+				words = Arrays.copyOf(words, count * 2);
+			}
+			words[count++] = word;
+			return true;
 		}
 
-		/**
-		 * Replace a sentence with some other sentence.
-		 * Useful to preserve references.
-		 */
-		public ChatSentence replaceSentence(ChatSentence src) {
-			words.clear();
-			contains.clear();
-			appendSentence(src);
-			return this;
+		@Override
+		public void clear() {
+			Arrays.fill(words, 0, count, null);
+			count = 0;
 		}
 
-		public ChatSentence appendSentence(ChatSentence src) {
-			words.addAll(src.getWords());
-			contains.addAll(src.getWords());
-			return this;
+		@Override
+		public int size() {
+			return count;
 		}
 
-		/**
-		 * Get last word of the sentence.
-		 */
-		public ChatWord getLastWord() {
-			for (int i=words.size()-1; i>=0; i--) {
-				if (words.get(i) instanceof ChatWord) {
-					return (ChatWord) words.get(i);
+		@Override
+		public Iterator<ChatWord> iterator() {
+			return new Iterator<ChatWord>() {
+				private int next = 0;
+
+				@Override
+				public boolean hasNext() {
+					return next < count;
 				}
-			}
-			throw new IllegalStateException("No ChatWords found!");
+
+				@Override
+				public ChatWord next() {
+					if (next >= count) {
+						throw new NoSuchElementException();
+					}
+					return words[next++];
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException("Topics are refilled, not removed");
+				}
+			};
 		}
+	}
+
+	/**
+	 * PunctuationTable is the small alphabet of punctuation characters a
+	 * ChatbotBrain has seen. Each character gets a symbol that fits in a
+	 * byte, so words can record punctuation as packed ints. Characters
+	 * beyond the first 256 distinct ones are not tracked.
+	 */
+	static class PunctuationTable {
+		/** Most symbols a table can hold. */
+		public static final int MAX_SYMBOLS = 256;
+
+		/** The characters, indexed by symbol. */
+		private char[] symbols;
+		/** Number of symbols in use. */
+		private int count;
 
 		/**
-		 * Checks if the sentence has a word
+		 * Creates an empty punctuation table.
 		 */
-		public boolean hasWord(ChatWord word) {
-			return contains.contains(word);
+		public PunctuationTable() {
+			symbols = new char[16];
+			count = 0;
 		}
 
 		/**
-		 * Counts the number of words in a sentence.
+		 * Gets the symbol for a character, or -1 if it was never seen.
 		 */
-		public int countWords() {
-			int cnt = 0;
-			for (Object o : words) {
-				if (o instanceof ChatWord) {
-					cnt++;
+		public int lookup(char c) {
+			for (int i = 0; i < count; i++) {
+				if (symbols[i] == c) {
+					return i;
 				}
 			}
-			return cnt;
+			return -1;
 		}
 
 		/**
-		 * Gets all the words of the sentence
+		 * Gets the symbol for a character, adding it if needed. Returns
+		 * -1 if the table is full.
 		 */
-		private List<Object> getWords() {
-			return words;
+		public int intern(char c) {
+			int symbol = lookup(c);
+			if (symbol < 0 && count < MAX_SYMBOLS) {
+				if (count == symbols.length) {
+					symbols = Arrays.copyOf(symbols, count * 2);
+				}
+				symbol = count++;
+				symbols[symbol] = c;
+			}
+			return symbol;
 		}
 
 		/**
-		 * Returns the sentence as a string.
+		 * Gets the character behind a symbol.
 		 */
-		@Override
-		public String toString() {
-			StringBuffer sb = new StringBuffer();
-			for (Object o : words) {
-				if (o instanceof ChatWord) {
-					ChatWord cw = (ChatWord) o;
-					sb.append(" ");
-					sb.append( cw.getWord() );
-				} else {
-					sb.append(o);
-				}
-			}
-			return sb.toString().trim();
+		public char getCharacter(int symbol) {
+			return symbols[symbol];
 		}
 
 		/**
-		 * Clones this sentence.
+		 * Number of symbols in the table.
 		 */
-		@Override
-		public Object clone() {
-			return new ChatSentence(this);
+		public int size() {
+			return count;
 		}
 	}
 
 	/**
-	 * ChatWord allows the creation of words that track how they are
-	 * connected to other words in a forward fashion. In this way it is
-	 * possible to construct arbitrary length sentences involving a set
-	 * of keywords harvested from statements. Trust me, it's possible.
+	 * ChatDictionary is the vocabulary of a ChatbotBrain. It maps the text
+	 * of every observed word to a dense id, and back again. Words share a
+	 * single byte arena instead of each holding their own String, and ids
+	 * are found through an open-addressing table, so a word costs its
+	 * characters plus a few ints. Lookups work directly on a window of any
+	 * CharSequence, so the tokenizer never needs to cut a String out of a
+	 * sentence for a word it already knows. Only the characters that can
+	 * appear in words (and the END/start words) are stored, so one byte
+	 * per character is enough.
 	 */
-	static class ChatWord {
-		/** The word. */
-		private String word;
-		/** Collection of punctuation observed after this word */
-		private NavigableMap<Integer, Collection<Character>> punctuation;
-		/** Lookup linking observed punctuation to where they are in ordering */
-		private Map<Character, Integer> punctuationLookup;
-		/** Punctionation observation count */
-		private Integer punctuationCount;
-		
-		/** Collection of ChatWords observed after this word */
-		private NavigableMap<Integer, Collection<ChatWord>> firstOrder;
-		/** Lookup linking observed words to where they are in ordering */
-		private Map<ChatWord, Integer> firstOrderLookup;
-		/** First order antecedent word count */
-		private Integer firstOrderCount;
+	static class ChatDictionary {
+		/** Id of the ENDWORD, present in every dictionary. */
+		public static final int END_ID = 0;
+		/** Id of the start word, present in every dictionary. */
+		public static final int START_ID = 1;
+
+		/** All word characters, back to back. */
+		private byte[] arena;
+		/** How much of the arena is in use. */
+		private int arenaSize;
+		/** Where each word starts in the arena; the next entry is where it ends. */
+		private int[] offsets;
+		/** Cached hash of each word, to make growing the table cheap. */
+		private int[] hashes;
+		/** Open-addressing table of id+1, with 0 meaning an empty slot. */
+		private int[] table;
+		/** Number of words in the dictionary. */
+		private int count;
 
 		/**
-		 * Creates a new ChatWord that is aware of punctuation that
-		 * follows it, and also ChatWords that follow it.
+		 * Creates a dictionary holding only the ENDWORD and start word.
 		 */
-		public ChatWord(String word){
-			this.word = word;
+		public ChatDictionary() {
+			arena = new byte[256];
+			offsets = new int[64];
+			hashes = new int[64];
+			table = new int[128];
+			count = 0;
+			intern("\n", 0, 1);
+			intern("", 0, 0);
+		}
 
-			this.firstOrder = new TreeMap<Integer, Collection<ChatWord>>();
-			this.firstOrderLookup = new HashMap<ChatWord, Integer>();
-			this.firstOrderCount = 0;
+		/**
+		 * Finds the id of the word spanning start (inclusive) to end
+		 * (exclusive) of text, or -1 if it has never been seen.
+		 */
+		public int lookup(CharSequence text, int start, int end) {
+			int hash = hash(text, start, end);
+			int mask = table.length - 1;
+			for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+				int id = table[slot] - 1;
+				if (hashes[id] == hash && matches(id, text, start, end)) {
+					return id;
+				}
+			}
+			return -1;
+		}
 
-			this.punctuation = new TreeMap<Integer, Collection<Character>>();
-			this.punctuationLookup = new HashMap<Character, Integer>();
-			this.punctuationCount = 0;
+		/**
+		 * Adds the word spanning start (inclusive) to end (exclusive) of
+		 * text, returning its id. If already present the existing id is
+		 * returned.
+		 */
+		public int intern(CharSequence text, int start, int end) {
+			int id = lookup(text, start, end);
+			if (id >= 0) {
+				return id;
+			}
+			int length = end - start;
+			if (arenaSize + length > arena.length) {
+				arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + length));
+			}
+			for (int i = start; i < end; i++) {
+				char c = text.charAt(i);
+				if (c > 0xFF) {
+					throw new IllegalArgumentException("Words must be single byte characters");
+				}
+				arena[arenaSize++] = (byte) c;
+			}
+			if (count + 2 > offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				hashes = Arrays.copyOf(hashes, hashes.length * 2);
+			}
+			id = count++;
+			offsets[id + 1] = arenaSize;
+			hashes[id] = hash(text, start, end);
+			if (count * 2 > table.length) {
+				rehash(table.length * 2);
+			} else {
+				place(id);
+			}
+			return id;
 		}
 
 		/**
-		 * Including this for now, but I don't like it -- it returns all
-		 * descendents wholesale. I think what would be better is some
-		 * function that returns a descendent based on some characteristic.
+		 * Number of words in the dictionary.
 		 */
-		protected NavigableMap<Integer, Collection<ChatWord>> getDescendents() {
-			return firstOrder;
+		public int size() {
+			return count;
 		}
 
 		/**
-		 * Returns how many descendents this word has seen.
+		 * Length in characters of the word with the given id.
 		 */
-		protected int getDescendentCount() {
-			return firstOrderCount;
+		public int length(int id) {
+			return offsets[id + 1] - offsets[id];
 		}
 
 		/**
-		 * Gets the lookup map for descendents
+		 * Appends the text of a word to a StringBuilder. This is the
+		 * reverse lookup, meant for rendering finished sentences.
 		 */
-		protected Map<ChatWord, Integer> getDescendentsLookup() {
-			return firstOrderLookup;
+		public void appendText(int id, StringBuilder sb) {
+			for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+				sb.append((char) (arena[i] & 0xFF));
+			}
 		}
 
-		/** As conversation progresses, word orderings will be encountered.
-		 * The descendent style of "learning" basically weights how often
-		 * words are encountered together, and is strongly biased towards
-		 * encountered ordering.
-		 * Thus, when constructing a "reply", the bot can use what it
-		 * has "learned" about precedence and ordering to construct
-		 * phrases that may or may not make sense. It's a grand adventure!
-		 * This function allows recording a new occurence of a word after 
-		 * this ChatWord. For word recording purposes, it is recommended
-		 * that all but [-a-zA-Z0-9] be removed. This isn't required, but
-		 * as we're discussing speech and not high forms of communication it
-		 * should be sufficient.
+		/**
+		 * Gets the text of a word as a String.
 		 */
-		public void addDescendent(ChatWord next) {
-			if(next != null){
-				firstOrderCount++;
-				int nextCount = 1;
-				Collection<ChatWord> obs = null;
-				// If we've already seen this word, clean up prior membership.
-				if(firstOrderLookup.containsKey(next)){
-					nextCount = firstOrderLookup.remove(next);
-					obs = firstOrder.get(nextCount);
-					// Remove from prior obs count order
-					obs.remove(next);
-					nextCount++;
-				}
-				obs = firstOrder.get(nextCount);
-				if (obs == null) { // we don't have this order yet
-					obs = new HashSet<ChatWord>();
-					firstOrder.put(nextCount, obs);
+		public String getText(int id) {
+			StringBuilder sb = new StringBuilder(length(id));
+			appendText(id, sb);
+			return sb.toString();
+		}
+
+		/**
+		 * Approximate heap bytes held by the dictionary arrays.
+		 */
+		public long footprint() {
+			return arena.length + 4L * (offsets.length + hashes.length + table.length);
+		}
+
+		/** Helper comparing a stored word against a window of text. */
+		private boolean matches(int id, CharSequence text, int start, int end) {
+			int from = offsets[id];
+			if (offsets[id + 1] - from != end - start) {
+				return false;
+			}
+			for (int i = start; i < end; i++) {
+				if ((arena[from++] & 0xFF) != text.charAt(i)) {
+					return false;
 				}
-				firstOrderLookup.put(next, nextCount);
-				obs.add(next);
 			}
+			return true;
 		}
 
+		/** Helper to put an id into the first free slot for its hash. */
+		private void place(int id) {
+			int mask = table.length - 1;
+			int slot = hashes[id] & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id + 1;
+		}
+
+		/** Helper to grow the table. */
+		private void rehash(int size) {
+			table = new int[size];
+			for (int id = 0; id < count; id++) {
+				place(id);
+			}
+		}
+
+		/** Helper hashing a window of text, mixed to spread the low bits. */
+		private static int hash(CharSequence text, int start, int end) {
+			int h = 0;
+			for (int i = start; i < end; i++) {
+				h = 31 * h + text.charAt(i);
+			}
+			h *= 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/**
+	 * DeltaLog is the record of what a LeaderBrain learns, as a stream of
+	 * bytes. Each record is a kind byte followed by its fields, as
+	 * varints (seven bits a byte, low bits first) except for weights,
+	 * which are eight bytes. Records only become visible to readers once
+	 * committed, a whole sentence or decay at a time, so readers never
+	 * see half of one. Offsets count every byte ever written; the oldest
+	 * are dropped once more than the retained amount is held.
+	 */
+	static class DeltaLog {
+		/** A new word: its text. It takes the next id. */
+		public static final byte WORD = 1;
+		/** The start of a sentence in the conversation window. */
+		public static final byte SENTENCE = 2;
+		/** A sighting of a word: its id. */
+		public static final byte SIGHTING = 3;
+		/** Edge counts: word id, next word id, count. */
+		public static final byte EDGE = 4;
+		/** Punctuation counts: word id, character, count. */
+		public static final byte PUNCTUATION = 5;
+		/** A decay of all topic weights. */
+		public static final byte DECAY = 6;
+		/** A topic weight, in snapshots only: word id, weight. */
+		public static final byte WEIGHT = 7;
+		/** Word count and sum of weights, in snapshots only. */
+		public static final byte COUNTS = 8;
+
+		/** Word text is ASCII; this keeps one byte per character. */
+		public static final java.nio.charset.Charset CHARSET =
+				java.nio.charset.Charset.forName("ISO-8859-1");
+
+		/** The records held. */
+		private byte[] bytes;
+		/** Bytes of records held, committed or not. */
+		private int length;
+		/** Bytes of records committed. */
+		private int committed;
+		/** Offset of bytes[0]. */
+		private long start;
+		/** Bytes to hold on to for readers that are behind. */
+		private int retain;
+		/** Offset of the end of each commit held. */
+		private long[] commitOffsets;
+		/** When each commit held was made. */
+		private long[] commitTimes;
+		/** Number of commits held. */
+		private int commits;
+
 		/**
-		 * Some words have punctuation after them more often than not. 
-		 * This allows the ChatBrain to record occurrences of punctuation
-		 * after a word.
+		 * Creates an empty log holding on to at least retain bytes.
 		 */
-		public void addPunctuation(Character punc) {
-			if(punc != null){
-				punctuationCount++;
-				int puncCount = 1;
-				Collection<Character> obs = null;
-				// If we've already seen this punc, clean up prior membership.
-				if(punctuationLookup.containsKey(punc)){
-					puncCount = punctuationLookup.remove(punc);
-					obs = punctuation.get(puncCount);
-					// Remove from prior obs count order
-					obs.remove(punc);
-					puncCount++;
-				}
-				obs = punctuation.get(puncCount);
-				if (obs == null) { // we don't have this order yet
-					obs = new HashSet<Character>();
-					punctuation.put(puncCount, obs);
-				}
-				punctuationLookup.put(punc, puncCount);
-				obs.add(punc);
+		public DeltaLog(int retain) {
+			bytes = new byte[1024];
+			length = 0;
+			committed = 0;
+			start = 0;
+			this.retain = retain;
+			commitOffsets = new long[64];
+			commitTimes = new long[64];
+			commits = 0;
+		}
+
+		/**
+		 * Writes a new word.
+		 */
+		public synchronized void word(CharSequence text, int from, int to) {
+			putByte(WORD);
+			putVarint(to - from);
+			for (int i = from; i < to; i++) {
+				putByte(text.charAt(i));
 			}
 		}
 
 		/**
-		 * Including this for now, but I don't like it -- it returns all
-		 * punctuation wholesale. I think what would be better is some
-		 * function that returns punctuation based on some characteristic.
+		 * Writes the start of a sentence.
 		 */
-		protected NavigableMap<Integer, Collection<Character>> getPunctuation() {
-			return punctuation;
+		public synchronized void sentence() {
+			putByte(SENTENCE);
 		}
 
 		/**
-		 * Gets count of punctuation encountered.
+		 * Writes a sighting of a word.
 		 */
-		protected int getPunctuationCount() {
-			return punctuationCount;
+		public synchronized void sighting(int id) {
+			putByte(SIGHTING);
+			putVarint(id);
 		}
 
 		/**
-		 * Gets lookup of punctuations encountered.
+		 * Writes edge counts.
 		 */
-		protected Map<Character, Integer> getPunctuationLookup() {
-			return punctuationLookup;
+		public synchronized void edge(int id, int next, int count) {
+			putByte(EDGE);
+			putVarint(id);
+			putVarint(next);
+			putVarint(count);
 		}
 
 		/**
-		 * Gets the String backing this ChatWord.
+		 * Writes punctuation counts.
 		 */
-		public String getWord() {
-			return word;
+		public synchronized void punctuation(int id, char c, int count) {
+			putByte(PUNCTUATION);
+			putVarint(id);
+			putVarint(c);
+			putVarint(count);
 		}
 
 		/**
-		 * ChatWords are equivalent with the String they wrap.
+		 * Writes a decay.
 		 */
-		@Override
-		public int hashCode() {
-			return word.hashCode();
+		public synchronized void decay() {
+			putByte(DECAY);
 		}
 
 		/**
-		 * ChatWord equality is that ChatWords that wrap the same String
-		 * are equal, and a ChatWord is equal to the String that it contains.
+		 * Writes a topic weight.
 		 */
-		@Override
-		public boolean equals(Object o){
-			if (o == this) {
-				return true;
+		public synchronized void weight(int id, double weight) {
+			putByte(WEIGHT);
+			putVarint(id);
+			putLong(Double.doubleToLongBits(weight));
+		}
+
+		/**
+		 * Writes the word count and sum of weights.
+		 */
+		public synchronized void counts(int wordCount, double wordValues) {
+			putByte(COUNTS);
+			putVarint(wordCount);
+			putLong(Double.doubleToLongBits(wordValues));
+		}
+
+		/**
+		 * Makes the records written so far visible to readers, and wakes
+		 * any that are waiting. Old records beyond what is retained are
+		 * dropped here, a commit at a time.
+		 */
+		public synchronized void commit() {
+			if (length == committed) {
+				return;
 			}
-			if (o instanceof ChatWord) {
-				return ((ChatWord)o).getWord().equals(this.getWord());
+			if (commits == commitOffsets.length) {
+				commitOffsets = Arrays.copyOf(commitOffsets, commits * 2);
+				commitTimes = Arrays.copyOf(commitTimes, commits * 2);
 			}
-			if (o instanceof String) {
-				return ((String)o).equals(this.getWord());
+			committed = length;
+			commitOffsets[commits] = start + committed;
+			commitTimes[commits++] = System.currentTimeMillis();
+			int drop = 0;
+			if (length > (long) retain * 2) {
+				while (commitOffsets[drop] - start < length - retain) {
+					drop++;
+				}
+			}
+			if (drop > 0) {
+				int cut = (int) (commitOffsets[drop - 1] - start);
+				System.arraycopy(bytes, cut, bytes, 0, length - cut);
+				length -= cut;
+				committed -= cut;
+				start += cut;
+				commits -= drop;
+				System.arraycopy(commitOffsets, drop, commitOffsets, 0, commits);
+				System.arraycopy(commitTimes, drop, commitTimes, 0, commits);
 			}
+			notifyAll();
+		}
 
-			return false;
+		/**
+		 * Gets the offset of the oldest record held.
+		 */
+		public synchronized long getStart() {
+			return start;
 		}
 
 		/**
-		 * Returns this ChatWord as a String.
+		 * Gets the offset of the end of the committed records.
 		 */
-		@Override
-		public String toString() {
-			StringBuilder sb = new StringBuilder();
-			sb.append("ChatWord[");
-			sb.append(word);
-			sb.append("]desc{");
-			for (Integer key : firstOrder.keySet() ) {
-				Collection<ChatWord> value = firstOrder.get(key);
-				sb.append(key);
-				sb.append(":[");
-				for (ChatWord cw : value) {
-					sb.append(cw.getWord());
-					sb.append(",");
+		public synchronized long getEnd() {
+			return start + committed;
+		}
+
+		/**
+		 * Gets when the first commit after an offset was made, or now if
+		 * there is none yet.
+		 */
+		public synchronized long getCommitTime(long offset) {
+			int i = firstCommitAfter(offset);
+			return (i < commits) ? commitTimes[i] : System.currentTimeMillis();
+		}
+
+		/**
+		 * Waits until there are committed records after an offset, and
+		 * then until there are at least bytes of them or millis have
+		 * passed since the first of them was committed. Returns right
+		 * away if the offset is no longer held.
+		 */
+		public synchronized void await(long offset, int bytes, long millis)
+				throws InterruptedException {
+			while (offset >= start) {
+				long end = start + committed;
+				if (end > offset) {
+					long due = getCommitTime(offset) + millis;
+					long now = System.currentTimeMillis();
+					if (end - offset >= bytes || now >= due) {
+						return;
+					}
+					wait(due - now);
+				} else {
+					wait();
 				}
-				sb.append("],");
 			}
-			sb.append("}punc{");
-			for (Integer key : punctuation.keySet() ) {
-				Collection<Character> value = punctuation.get(key);
-				sb.append(key);
-				sb.append(":[");
-				for (Character c : value) {
-					sb.append("\"");
-					sb.append(c);
-					sb.append("\",");
+		}
+
+		/**
+		 * Copies the committed records from an offset, up to about max
+		 * bytes of them ending on a commit. A commit bigger than max is
+		 * copied whole. Returns null if the offset is no longer held.
+		 */
+		public synchronized byte[] read(long offset, int max) {
+			if (offset < start || offset > start + committed) {
+				return null;
+			}
+			int i = firstCommitAfter(offset);
+			long end = offset;
+			while (i < commits && (end == offset || commitOffsets[i] - offset <= max)) {
+				end = commitOffsets[i++];
+			}
+			return Arrays.copyOfRange(bytes, (int) (offset - start), (int) (end - start));
+		}
+
+		/** Helper to find the index of the first commit ending after an offset. */
+		private int firstCommitAfter(long offset) {
+			int low = 0;
+			int high = commits;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (commitOffsets[mid] <= offset) {
+					low = mid + 1;
+				} else {
+					high = mid;
 				}
-				sb.append("],");
 			}
-			sb.append("}");
-			return sb.toString();
+			return low;
+		}
+
+		/** Helper to write a byte. */
+		private void putByte(int b) {
+			if (length == bytes.length) {
+				bytes = Arrays.copyOf(bytes, length * 2);
+			}
+			bytes[length++] = (byte) b;
+		}
+
+		/** Helper to write a varint. */
+		private void putVarint(int value) {
+			while ((value & ~0x7F) != 0) {
+				putByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			putByte(value);
+		}
+
+		/** Helper to write eight bytes, high byte first. */
+		private void putLong(long value) {
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				putByte((int) (value >>> shift));
+			}
 		}
 	}
 }
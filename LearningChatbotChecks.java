@@ -0,0 +1,428 @@
+/* "Zero"-knowledge Learning ChatBot  Copyright (C) 2014-2016 Daniel Boston (ProgrammerDan)
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if not, write to the 
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Self checks for LearningChatbot, kept apart from the chatbot itself.
+ * Run one by its flag:
+ *    java LearningChatbotChecks --check-allocations
+ *    java LearningChatbotChecks --replication-check
+ * Each prints what it measured and exits with status 1 if the check
+ * failed. The replication check starts its follower JVMs with
+ *    java LearningChatbotChecks --replication-follower port
+ * which isn't meant to be run by hand.
+ */
+public class LearningChatbotChecks {
+	/**
+	 * Runs the check named by the first argument.
+	 */
+	public static void main(String[] args) {
+		try {
+			if (args.length > 0 && args[0].equals("--check-allocations")) {
+				System.exit(new AllocationBudget().check(System.out) ? 0 : 1);
+			} else if (args.length > 0 && args[0].equals("--replication-check")) {
+				System.exit(new ReplicationCheck().check(System.out) ? 0 : 1);
+			} else if (args.length > 1 && args[0].equals("--replication-follower")) {
+				new ReplicationCheck().follow(Integer.parseInt(args[1]), System.in, System.out);
+				System.exit(0);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.out.println("Checks are --check-allocations and --replication-check.");
+		System.exit(1);
+	}
+
+	/**
+	 * AllocationBudget checks that the hot paths of the brain allocate no
+	 * more than they are allowed to, so garbage that has been got rid of
+	 * once doesn't creep back. A brain is warmed up on made-up sentences,
+	 * then the bytes the current thread allocates are measured around
+	 * each call (with the HotSpot ThreadMXBean) and averaged over CALLS
+	 * calls. Run it with
+	 *    java LearningChatbotChecks --check-allocations
+	 * which exits with status 1 if any call went over its budget.
+	 */
+	static class AllocationBudget {
+		/** Distinct words in the made-up vocabulary. */
+		public static final int VOCABULARY = 1000;
+		/** Sentences digested to warm up the brain. */
+		public static final int WARM_SENTENCES = 2000;
+		/** Calls averaged for each measurement. */
+		public static final int CALLS = 200;
+		/** Node budget of the sentences built. */
+		public static final long SENTENCE_NODES = 2000;
+
+		/** Budget of digestSentence, per word digested. */
+		public static final long DIGEST_BUDGET = 640;
+		/** Budget of decay, per word in the vocabulary. */
+		public static final long DECAY_BUDGET = 320;
+		/**
+		 * Budget of topicWords. Walking past the skipped words costs an
+		 * iterator for each weight.
+		 */
+		public static final long TOPICS_BUDGET = 12288;
+		/** Budget of addDescendent on an edge already known. */
+		public static final long DESCENDENT_BUDGET = 256;
+		/** Budget of a depth first buildSentence of SENTENCE_NODES. */
+		public static final long SENTENCE_BUDGET = 16384;
+
+		/** Source of randomness; seeded so every run is alike. */
+		private Random random;
+
+		/** Source of made-up sentences. */
+		private MadeUpText text;
+
+		/** Thread allocation counter, or null if the JVM has none. */
+		private com.sun.management.ThreadMXBean threads;
+
+		/**
+		 * Sets up the made-up vocabulary.
+		 */
+		public AllocationBudget() {
+			random = new Random(42);
+			text = new MadeUpText(VOCABULARY, random);
+			java.lang.management.ThreadMXBean bean =
+					java.lang.management.ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				threads = (com.sun.management.ThreadMXBean) bean;
+				if (threads.isThreadAllocatedMemorySupported()) {
+					threads.setThreadAllocatedMemoryEnabled(true);
+				} else {
+					threads = null;
+				}
+			}
+		}
+
+		/**
+		 * Measures every hot path against its budget, writing a line for
+		 * each to out. Returns whether they were all within budget.
+		 */
+		public boolean check(PrintStream out) {
+			if (threads == null) {
+				out.println("This JVM can't count allocated bytes, nothing checked.");
+				return true;
+			}
+			final LearningChatbot.ChatbotBrain brain = new LearningChatbot.ChatbotBrain();
+			brain.setNodeBudget(SENTENCE_NODES);
+			for (int i = 0; i < WARM_SENTENCES; i++) {
+				brain.decay();
+				brain.digestSentence(text.sentence());
+			}
+			for (int i = 0; i < CALLS; i++) { // warm the search too
+				brain.buildSentence();
+			}
+
+			final String[] sentences = new String[CALLS];
+			int words = 0;
+			for (int i = 0; i < CALLS; i++) {
+				sentences[i] = text.sentence();
+				words += sentences[i].split(" ").length;
+			}
+			// edges to count again, from a random walk over the brain
+			final LearningChatbot.ChatWord[] edges = new LearningChatbot.ChatWord[CALLS * 2];
+			LearningChatbot.WordBuffer successors = new LearningChatbot.WordBuffer();
+			LearningChatbot.ChatWord word = brain.word(LearningChatbot.ChatDictionary.START_ID);
+			for (int i = 0; i < edges.length; i += 2) {
+				brain.successors(word, successors);
+				edges[i] = word;
+				edges[i + 1] = brain.word(successors.getId(random.nextInt(successors.size())));
+				word = edges[i + 1].equals(LearningChatbot.ENDWORD) ? brain.word(LearningChatbot.ChatDictionary.START_ID) : edges[i + 1];
+			}
+
+			boolean passed = true;
+			passed &= measure(out, "digestSentence", DIGEST_BUDGET * words / CALLS,
+					new Runnable() {
+						private int i = 0;
+
+						@Override
+						public void run() {
+							brain.digestSentence(sentences[i++]);
+						}
+					});
+			passed &= measure(out, "decay", DECAY_BUDGET * VOCABULARY,
+					new Runnable() {
+						@Override
+						public void run() {
+							brain.decay();
+						}
+					});
+			passed &= measure(out, "topicWords", TOPICS_BUDGET,
+					new Runnable() {
+						@Override
+						public void run() {
+							brain.topicWords(LearningChatbot.ChatbotBrain.TOPICS);
+						}
+					});
+			passed &= measure(out, "addDescendent", DESCENDENT_BUDGET,
+					new Runnable() {
+						private int i = 0;
+
+						@Override
+						public void run() {
+							edges[i].addDescendent(edges[i + 1]);
+							i += 2;
+						}
+					});
+			passed &= measure(out, "buildSentence", SENTENCE_BUDGET,
+					new Runnable() {
+						@Override
+						public void run() {
+							brain.buildSentence();
+						}
+					});
+			out.println(passed ? "All within budget." : "Over budget!");
+			return passed;
+		}
+
+		/**
+		 * Helper to measure the average bytes allocated by CALLS calls
+		 * and compare them with a budget. Returns whether it was within.
+		 */
+		private boolean measure(PrintStream out, String name, long budget, Runnable call) {
+			long thread = Thread.currentThread().getId();
+			long before = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < CALLS; i++) {
+				call.run();
+			}
+			long bytes = (threads.getThreadAllocatedBytes(thread) - before) / CALLS;
+			boolean within = bytes <= budget;
+			out.printf("%-16s %8d bytes/call, budget %8d  %s\n", name, bytes, budget,
+					within ? "ok" : "OVER");
+			return within;
+		}
+
+	}
+
+	/**
+	 * MadeUpText makes up sentences from a vocabulary of random words,
+	 * for the self checks. Words are picked with a strong lean toward
+	 * the front of the vocabulary, the way real text leans on its common
+	 * words.
+	 */
+	static class MadeUpText {
+		/** Source of words and sentences. */
+		private Random random;
+
+		/** The made-up vocabulary. */
+		private String[] vocabulary;
+
+		/**
+		 * Makes up a vocabulary of a number of words.
+		 */
+		public MadeUpText(int words, Random random) {
+			this.random = random;
+			vocabulary = new String[words];
+			for (int i = 0; i < words; i++) {
+				StringBuilder sb = new StringBuilder();
+				int length = 2 + random.nextInt(8);
+				for (int c = 0; c < length; c++) {
+					sb.append((char) ('a' + random.nextInt(26)));
+				}
+				vocabulary[i] = sb.toString();
+			}
+		}
+
+		/**
+		 * Makes up a sentence.
+		 */
+		public String sentence() {
+			StringBuilder sb = new StringBuilder();
+			int length = 4 + random.nextInt(11);
+			for (int w = 0; w < length; w++) {
+				if (w > 0) {
+					sb.append(random.nextInt(10) == 0 ? ", " : " ");
+				}
+				sb.append(vocabulary[random.nextInt(1 + random.nextInt(vocabulary.length))]);
+			}
+			sb.append(random.nextInt(4) == 0 ? '?' : '.');
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * ReplicationCheck tests replication between JVMs on this machine.
+	 * A LeaderBrain is warmed up on made-up sentences and serves on a
+	 * loopback port. FOLLOWERS follower JVMs are started, and then the
+	 * leader learns SENTENCES more sentences as fast as it can. Halfway
+	 * through, LATE_FOLLOWERS more JVMs join, and so start from a
+	 * snapshot. Once the leader is done, each follower is told the
+	 * leader's final offset. It waits until it has caught up, then
+	 * reports a checksum of its brain and how far behind it ran. Run it
+	 * with
+	 *    java LearningChatbotChecks --replication-check
+	 * which prints the leader's throughput and each follower's lag. It
+	 * exits with status 1 if any follower ends up different from the
+	 * leader or doesn't catch up within CATCH_UP_MILLIS.
+	 */
+	static class ReplicationCheck {
+		/** Distinct words in the made-up vocabulary. */
+		public static final int VOCABULARY = 1000;
+		/** Sentences learned before any follower joins. */
+		public static final int WARM_SENTENCES = 1000;
+		/** Sentences learned while followers follow. */
+		public static final int SENTENCES = 2000;
+		/** Followers started before the sentences. */
+		public static final int FOLLOWERS = 2;
+		/** Followers started halfway through the sentences. */
+		public static final int LATE_FOLLOWERS = 1;
+		/** How long followers get to connect and to catch up. */
+		public static final long CATCH_UP_MILLIS = 30000;
+
+		/**
+		 * Runs the check, writing what it found to out. Returns whether
+		 * every follower ended up the same as the leader.
+		 */
+		public boolean check(PrintStream out) throws IOException, InterruptedException {
+			MadeUpText text = new MadeUpText(VOCABULARY, new Random(42));
+			LearningChatbot.LeaderBrain leader = new LearningChatbot.LeaderBrain();
+			leader.serve(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			for (int i = 0; i < WARM_SENTENCES; i++) {
+				leader.decay();
+				leader.digestSentence(text.sentence());
+			}
+			List<Process> followers = new ArrayList<Process>();
+			for (int i = 0; i < FOLLOWERS; i++) {
+				followers.add(startFollower(leader.getPort()));
+			}
+			long due = System.currentTimeMillis() + CATCH_UP_MILLIS;
+			while (leader.getFollowers() < FOLLOWERS && System.currentTimeMillis() < due) {
+				Thread.sleep(10);
+			}
+
+			long started = System.nanoTime();
+			long startOffset = leader.getLogOffset();
+			for (int i = 0; i < SENTENCES; i++) {
+				if (i == SENTENCES / 2) {
+					for (int j = 0; j < LATE_FOLLOWERS; j++) {
+						followers.add(startFollower(leader.getPort()));
+					}
+				}
+				leader.decay();
+				leader.digestSentence(text.sentence());
+			}
+			double seconds = (System.nanoTime() - started) / 1e9;
+			long bytes = leader.getLogOffset() - startOffset;
+			out.printf("Leader learned %d sentences in %.2f s: %.0f sentences/s, " +
+					"%d bytes of deltas (%.1f per sentence, %.1f KB/s).\n",
+					SENTENCES, seconds, SENTENCES / seconds, bytes,
+					bytes / (double) SENTENCES, bytes / seconds / 1024);
+
+			long offset = leader.getLogOffset();
+			long checksum = checksum(leader);
+			boolean passed = true;
+			for (int i = 0; i < followers.size(); i++) {
+				Process follower = followers.get(i);
+				PrintStream toFollower = new PrintStream(follower.getOutputStream(), true);
+				toFollower.println(offset);
+				BufferedReader fromFollower = new BufferedReader(
+						new InputStreamReader(follower.getInputStream()));
+				String report = fromFollower.readLine();
+				follower.waitFor();
+				String[] fields = (report == null) ? new String[0] : report.split(" ");
+				if (fields.length < 6) {
+					out.printf("Follower %d gave no report.\n", i + 1);
+					passed = false;
+					continue;
+				}
+				boolean same = Long.parseLong(fields[0]) == checksum &&
+						Long.parseLong(fields[1]) == offset;
+				out.printf("Follower %d%s: snapshot in %s ms, %s batches, " +
+						"lag %s ms mean, %s ms max, %s\n", i + 1,
+						(i < FOLLOWERS) ? "" : " (late)", fields[5], fields[2],
+						fields[3], fields[4], same ? "same as the leader" : "DIFFERENT");
+				passed &= same;
+			}
+			leader.close();
+			out.println(passed ? "All followers caught up." : "Replication failed!");
+			return passed;
+		}
+
+		/**
+		 * Follows the leader on a port, for a follower JVM started by
+		 * check. Waits to be told the leader's final offset on in, then
+		 * until the brain has caught up, and writes a line to out:
+		 * checksum, offset, batches, mean and max lag, and how long
+		 * the snapshot took, in milliseconds.
+		 */
+		public void follow(int port, InputStream in, PrintStream out)
+				throws IOException, InterruptedException {
+			LearningChatbot.FollowerBrain follower = new LearningChatbot.FollowerBrain();
+			long started = System.nanoTime();
+			follower.follow(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+			while (follower.getOffset() < 0 && follower.isFollowing()) {
+				Thread.sleep(1);
+			}
+			long snapshotMillis = (System.nanoTime() - started) / 1000000;
+			long offset = Long.parseLong(new BufferedReader(
+					new InputStreamReader(in)).readLine().trim());
+			long due = System.currentTimeMillis() + CATCH_UP_MILLIS;
+			while (follower.getOffset() < offset && follower.isFollowing() &&
+					System.currentTimeMillis() < due) {
+				Thread.sleep(1);
+			}
+			out.printf("%d %d %d %.1f %d %d\n", checksum(follower), follower.getOffset(),
+					follower.getBatches(), follower.getMeanLag(), follower.getMaxLag(),
+					snapshotMillis);
+			follower.close();
+		}
+
+		/**
+		 * Helper to start a follower JVM on the same classes.
+		 */
+		private Process startFollower(int port) throws IOException {
+			String java = System.getProperty("java.home") + File.separator + "bin" +
+					File.separator + "java";
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+					System.getProperty("java.class.path"), "LearningChatbotChecks",
+					"--replication-follower", String.valueOf(port));
+			builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+			return builder.start();
+		}
+
+		/**
+		 * Helper to sum up everything a brain knows: the text of its
+		 * words, their edges, punctuation characters and topic weights.
+		 * Punctuation symbol numbers are left out, as they depend on the
+		 * order the characters were first seen in.
+		 */
+		private static long checksum(LearningChatbot.ChatbotBrain brain) {
+			long sum = 17;
+			LearningChatbot.WordBuffer successors = new LearningChatbot.WordBuffer();
+			StringBuilder text = new StringBuilder();
+			synchronized (brain) {
+				for (int id = 0; id < brain.getVocabularySize(); id++) {
+					LearningChatbot.ChatWord word = brain.word(id);
+					text.setLength(0);
+					brain.appendText(id, text);
+					sum = sum * 31 + text.toString().hashCode();
+					brain.successors(word, successors);
+					for (int i = 0; i < successors.size(); i++) {
+						sum = sum * 31 + successors.getId(i);
+						sum = sum * 31 + successors.getCount(i);
+					}
+					for (int i = 0; i < word.getPunctuationKinds(); i++) {
+						sum = sum * 31 + brain.getPunctuationCharacter(word.getPunctuationSymbol(i));
+						sum = sum * 31 + word.getPunctuationFrequency(i);
+					}
+					sum = sum * 31 + Double.doubleToLongBits(brain.weight(word));
+				}
+			}
+			return sum;
+		}
+	}
+}